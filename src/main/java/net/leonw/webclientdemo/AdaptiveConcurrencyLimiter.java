@@ -0,0 +1,154 @@
+package net.leonw.webclientdemo;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.Data;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Mono;
+
+import java.net.ConnectException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+
+// A ConcurrencyLimiter that finds its own limit, AIMD style (like TCP congestion control).
+// - A call that is much slower than usual (latency > tolerance * baseline), times out or fails with a 429/503/
+//   connection error means the backend is overloaded: the limit is multiplied by backoffRatio.
+//   At most once per round trip; calls that started before the last decrease do not count.
+// - A normal call while the limit is actually being used: the limit grows by 1/limit, i.e. about +1 per round trip.
+// The baseline is a slow moving average of all latencies, so a backend that stays slow becomes the new normal
+// after a few hundred calls, and the limit grows back.
+//
+// The latency is measured from the moment the call gets a permit; time spent waiting in the queue is not the
+// backend's fault.
+@Slf4j
+class AdaptiveConcurrencyLimiter {
+    private static final double BASELINE_SMOOTHING = 1.0 / 500;
+
+    private final String name;
+    private final DownstreamLimitProperties.Limit props;
+    private final ConcurrencyLimiter limiter;
+    private final Counter decreases;
+    private double estimatedLimit; // guarded by this
+    private double baselineNanos; // guarded by this
+    private long lastDecrease = System.nanoTime(); // guarded by this
+
+    AdaptiveConcurrencyLimiter(String name, DownstreamLimitProperties.Limit props, MeterRegistry meterRegistry) {
+        this.name = name;
+        this.props = props;
+        this.estimatedLimit = props.getInitialLimit();
+        this.limiter = new ConcurrencyLimiter(name, props.getInitialLimit(), props.getMaxQueued(), meterRegistry);
+        this.decreases = meterRegistry.counter("demo.concurrency.limit.decreases", "name", name);
+    }
+
+    public <T> Mono<T> limit(Mono<T> call) {
+        return limiter.limit(Mono.defer(() -> {
+            long start = System.nanoTime();
+            return call
+                    .doOnSuccess(value -> onSample(start, false))
+                    .doOnError(t -> onSample(start, isOverload(t)));
+        }));
+    }
+
+    public int getLimit() {
+        return limiter.getLimit();
+    }
+
+    public int getQueued() {
+        return limiter.getQueued();
+    }
+
+    // Only what a busy backend does: it times out, does not take connections (or we cannot get one from the pool),
+    // or it says so with a 429 or 503. A 404 or 400 is a perfectly healthy backend saying no, a 500 is a bug, a
+    // response we cannot read is one bad payload, and the caller's own deadline is about the caller. Counting those
+    // would let one caller with a tight deadline shrink the limit for everyone.
+    static boolean isOverload(Throwable t) {
+        for (var cause = t; cause != null; cause = cause.getCause()) {
+            if (cause instanceof DeadlineExceededException) {
+                return false;
+            }
+            if (cause instanceof WebClientResponseException) {
+                var status = ((WebClientResponseException) cause).getRawStatusCode();
+                return status == HttpStatus.TOO_MANY_REQUESTS.value() || status == HttpStatus.SERVICE_UNAVAILABLE.value();
+            }
+            if (cause instanceof TimeoutException || cause instanceof io.netty.handler.timeout.TimeoutException
+                    || cause instanceof ConnectException
+                    // PoolAcquireTimeoutException, PoolAcquirePendingLimitException; shaded into reactor-netty
+                    || cause.getClass().getSimpleName().startsWith("PoolAcquire")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void onSample(long start, boolean overload) {
+        long now = System.nanoTime();
+        long latency = now - start;
+        int newLimit;
+        synchronized (this) {
+            boolean slow = baselineNanos > 0 && latency > baselineNanos * props.getTolerance();
+            baselineNanos = baselineNanos == 0 ? latency : baselineNanos + BASELINE_SMOOTHING * (latency - baselineNanos);
+            if (slow || overload) {
+                if (start - lastDecrease < 0) {
+                    return; // Already dealt with
+                }
+                lastDecrease = now;
+                estimatedLimit = Math.max(props.getMinLimit(), estimatedLimit * props.getBackoffRatio());
+                decreases.increment();
+            } else if (limiter.getInFlight() * 2 >= estimatedLimit) {
+                estimatedLimit = Math.min(props.getMaxLimit(), estimatedLimit + 1 / estimatedLimit);
+            }
+            newLimit = (int) estimatedLimit;
+        }
+        if (newLimit != limiter.getLimit()) {
+            log.debug("Concurrency limit of {} is now {}", name, newLimit);
+            limiter.setLimit(newLimit);
+        }
+    }
+}
+
+// One adaptive limiter per downstream, shared by everybody who calls it.
+// Off unless demo.downstream.limits.<name>.enabled=true
+@Component
+@RequiredArgsConstructor
+class DownstreamLimiters {
+    private final DownstreamLimitProperties props;
+    private final MeterRegistry meterRegistry;
+    private final Map<String, AdaptiveConcurrencyLimiter> limiters = new ConcurrentHashMap<>();
+
+    public <T> Mono<T> limit(String downstream, Mono<T> call) {
+        var limit = props.getLimits().get(downstream);
+        if (limit == null || !limit.isEnabled()) {
+            return call;
+        }
+        return limiters.computeIfAbsent(downstream, name -> new AdaptiveConcurrencyLimiter(name, limit, meterRegistry)).limit(call);
+    }
+}
+
+@Data
+@Configuration // This makes it a bean in the context, i.e. injectable
+@ConfigurationProperties(prefix = "demo.downstream")
+class DownstreamLimitProperties {
+    private Map<String, Limit> limits = new HashMap<>();
+
+    @Data
+    static class Limit {
+        private boolean enabled = false;
+        private int initialLimit = 20;
+        private int minLimit = 1;
+        private int maxLimit = 200;
+        // Above the limit calls wait. More than this waiting are rejected with a ConcurrencyLimitExceededException.
+        private int maxQueued = 1000;
+        // What the limit is multiplied with when the backend is overloaded
+        private double backoffRatio = 0.75;
+        // How much slower than the baseline counts as overloaded
+        private double tolerance = 2.0;
+    }
+}
@@ -0,0 +1,174 @@
+package net.leonw.webclientdemo;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.Timer;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.annotation.Order;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.util.AntPathMatcher;
+
+import javax.servlet.*;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// When the backend gets slow every enriched order takes longer, so more of them are in flight, each holding a Tomcat
+// thread in block(). Once all threads are taken new requests wait in the accept queue, and by the time they get a
+// thread their caller is (nearly) gone: every request times out with a 408 and nobody is served. Congestion collapse.
+//
+// This filter takes on the enriched order endpoints (demo.web.admission.paths) only what we can finish, and says no
+// to the rest right away, with a 503 and a Retry-After. That is before any call to the backend, so it costs next to
+// nothing. Two checks:
+// - in flight: at most max-in-flight enriched orders at a time. Below server.tomcat.threads.max, so other endpoints
+//   (actuator, health) still get a thread.
+// - queue time: how long the request waited before it got here. Tomcat does not tell us how long a request waited
+//   for a thread, but the proxy in front of us does: X-Request-Start ("t=<millis>" or nginx's "t=<seconds>.<millis>").
+//   A request that waited longer than max-queue-time is not worth starting; its caller has most likely given up.
+//   Without the header this check is skipped.
+//
+// In demo.admission.*: in_flight, the thresholds (max_in_flight, max_queue_time), queue_time, and rejected per
+// reason (in_flight, queue_time).
+//
+// Runs inside the LatencyFilter, so a rejected request is in /actuator/latency as well: a 5xx of UNMATCHED, as it
+// never gets to a controller. What we said no to is part of what our callers saw.
+//
+// Off unless demo.web.admission.enabled=true
+@Slf4j
+@Component
+@Order(AdmissionFilter.ORDER)
+class AdmissionFilter implements Filter {
+    static final String REQUEST_START = "X-Request-Start";
+    static final int ORDER = LatencyFilter.ORDER + 1;
+
+    private final AdmissionProperties props;
+    private final AntPathMatcher pathMatcher = new AntPathMatcher();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Timer queueTime;
+    private final Counter rejectedInFlight;
+    private final Counter rejectedQueueTime;
+
+    AdmissionFilter(AdmissionProperties props, MeterRegistry meterRegistry) {
+        this.props = props;
+        this.queueTime = meterRegistry.timer("demo.admission.queue_time");
+        this.rejectedInFlight = meterRegistry.counter("demo.admission.rejected", "reason", "in_flight");
+        this.rejectedQueueTime = meterRegistry.counter("demo.admission.rejected", "reason", "queue_time");
+        Gauge.builder("demo.admission.in_flight", inFlight, AtomicInteger::get).register(meterRegistry);
+        Gauge.builder("demo.admission.max_in_flight", props, AdmissionProperties::getMaxInFlight).register(meterRegistry);
+        TimeGauge.builder("demo.admission.max_queue_time", props, TimeUnit.MILLISECONDS, p -> p.getMaxQueueTime().toMillis()).register(meterRegistry);
+    }
+
+    @Override
+    public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse, FilterChain filterChain) throws IOException, ServletException {
+        HttpServletRequest request = (HttpServletRequest) servletRequest;
+        HttpServletResponse response = (HttpServletResponse) servletResponse;
+        if (!props.isEnabled() || !appliesTo(request)) {
+            filterChain.doFilter(servletRequest, servletResponse);
+            return;
+        }
+
+        long queuedMillis = queuedMillis(request);
+        if (queuedMillis >= 0) {
+            queueTime.record(queuedMillis, TimeUnit.MILLISECONDS);
+            if (queuedMillis > props.getMaxQueueTime().toMillis()) {
+                reject(request, response, rejectedQueueTime, "waited " + queuedMillis + " ms");
+                return;
+            }
+        }
+        if (inFlight.incrementAndGet() > props.getMaxInFlight()) {
+            inFlight.decrementAndGet();
+            reject(request, response, rejectedInFlight, props.getMaxInFlight() + " in flight");
+            return;
+        }
+
+        try {
+            filterChain.doFilter(servletRequest, servletResponse);
+        } finally {
+            if (request.isAsyncStarted()) {
+                // A controller returned a Mono: still in flight until the response is written (see LatencyFilter).
+                // onComplete comes after a timeout or an error as well.
+                request.getAsyncContext().addListener(new AsyncListener() {
+                    @Override
+                    public void onComplete(AsyncEvent event) {
+                        inFlight.decrementAndGet();
+                    }
+
+                    @Override
+                    public void onTimeout(AsyncEvent event) {
+                    }
+
+                    @Override
+                    public void onError(AsyncEvent event) {
+                    }
+
+                    @Override
+                    public void onStartAsync(AsyncEvent event) {
+                    }
+                });
+            } else {
+                inFlight.decrementAndGet();
+            }
+        }
+    }
+
+    int getInFlight() {
+        return inFlight.get();
+    }
+
+    // The filter is for the enriched orders only; everything else goes through as is
+    private boolean appliesTo(HttpServletRequest request) {
+        var path = request.getRequestURI().substring(request.getContextPath().length());
+        return props.getPaths().stream().anyMatch(pattern -> pathMatcher.match(pattern, path));
+    }
+
+    // -1 when the proxy did not tell us, or told us something we cannot read
+    private static long queuedMillis(HttpServletRequest request) {
+        var header = request.getHeader(REQUEST_START);
+        if (header == null) {
+            return -1;
+        }
+        try {
+            var value = header.startsWith("t=") ? header.substring(2) : header;
+            long start = value.contains(".") ? (long) (Double.parseDouble(value) * 1000) : Long.parseLong(value);
+            // Clocks of the proxy and of this host differ a little; never less than nothing
+            return Math.max(0, System.currentTimeMillis() - start);
+        } catch (NumberFormatException e) {
+            log.debug("Ignoring {} header {}", REQUEST_START, header);
+            return -1;
+        }
+    }
+
+    private void reject(HttpServletRequest request, HttpServletResponse response, Counter rejected, String reason) throws IOException {
+        rejected.increment();
+        log.debug("Rejected {} {}: {}", request.getMethod(), request.getRequestURI(), reason);
+        // Not sendError: no error page, shedding has to be cheap
+        response.setStatus(HttpStatus.SERVICE_UNAVAILABLE.value());
+        response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(Math.max(1, props.getRetryAfter().toSeconds())));
+        response.setContentType("text/plain");
+        response.getWriter().write("Too busy, please try again later.");
+    }
+}
+
+@Data
+@Configuration // This makes it a bean in the context, i.e. injectable
+@ConfigurationProperties(prefix = "demo.web.admission")
+class AdmissionProperties {
+    private boolean enabled = false;
+    private List<String> paths = List.of("/**/enriched-orders/**");
+    // Tomcat has 200 threads by default; this leaves some for everything else
+    private int maxInFlight = 150;
+    // Waited longer than this before we got to it: its caller has most likely given up
+    private Duration maxQueueTime = Duration.ofSeconds(2);
+    private Duration retryAfter = Duration.ofSeconds(1);
+}
@@ -0,0 +1,154 @@
+package net.leonw.webclientdemo;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+// DataLoader style micro batching.
+// An order with 200 lines means 200 order line calls and 200 product calls. They are all requested within
+// a few milliseconds of each other, so we collect the ids for a short window (or until the batch is full),
+// do 1 bulk call (/products?ids=a,b,c) and give every waiting Mono its own result.
+//
+// If the backend has no bulk endpoint (404, 405 or 501 on the bulk call) we remember that and do single
+// calls from then on. Ids missing from a bulk response are also retrieved with a single call, so the
+// single call error handling (retries, 404 -> default) still applies to them.
+//
+// Note: this is the one place where we subscribe ourselves. The callers subscribe to their own Mono,
+// and the batch is something nobody in particular subscribes to.
+@Slf4j
+class BatchLoader<K, V> {
+    private final String name;
+    private final Function<List<K>, Mono<List<V>>> bulkCall;
+    private final Function<V, K> keyOf;
+    private final Function<K, Mono<V>> singleCall;
+    private final BatchingProperties props;
+    private final DistributionSummary batchSizes;
+    private final Scheduler scheduler = Schedulers.parallel();
+
+    private List<Pending<K, V>> pending = new ArrayList<>(); // guarded by this
+    private volatile boolean bulkSupported = true;
+
+    BatchLoader(String name, BatchingProperties props, MeterRegistry meterRegistry,
+                Function<List<K>, Mono<List<V>>> bulkCall, Function<V, K> keyOf, Function<K, Mono<V>> singleCall) {
+        this.name = name;
+        this.props = props;
+        this.bulkCall = bulkCall;
+        this.keyOf = keyOf;
+        this.singleCall = singleCall;
+        this.batchSizes = DistributionSummary.builder("demo.batching.batch_size")
+                .tag("resource", name)
+                .register(meterRegistry);
+    }
+
+    /**
+     * The bulk call of the backend does not exist. Do not retry, but fall back to single calls.
+     */
+    static boolean isBulkUnsupported(Throwable t) {
+        return t instanceof WebClientResponseException.NotFound
+                || t instanceof WebClientResponseException.MethodNotAllowed
+                || t instanceof WebClientResponseException.NotImplemented;
+    }
+
+    public Mono<V> load(K key) {
+        if (!bulkSupported) {
+            return singleCall.apply(key);
+        }
+        return Mono.defer(() -> {
+            Sinks.One<V> sink = Sinks.one();
+            List<Pending<K, V>> full = null;
+            boolean first;
+            synchronized (this) {
+                pending.add(new Pending<>(key, sink));
+                first = pending.size() == 1;
+                if (pending.size() >= props.getMaxBatchSize()) {
+                    full = pending;
+                    pending = new ArrayList<>();
+                }
+            }
+            if (full != null) {
+                dispatch(full);
+            } else if (first) {
+                // Whatever is pending when the window closes goes. Could be a batch started after a full batch
+                // was dispatched - then that batch is just a bit smaller.
+                scheduler.schedule(this::flush, props.getWindow().toNanos(), TimeUnit.NANOSECONDS);
+            }
+            return sink.asMono();
+        });
+    }
+
+    private void flush() {
+        List<Pending<K, V>> batch;
+        synchronized (this) {
+            batch = pending;
+            pending = new ArrayList<>();
+        }
+        if (!batch.isEmpty()) {
+            dispatch(batch);
+        }
+    }
+
+    private void dispatch(List<Pending<K, V>> batch) {
+        var keys = batch.stream().map(Pending::key).distinct().collect(Collectors.toList());
+        batchSizes.record(keys.size());
+        bulkCall.apply(keys)
+                .defaultIfEmpty(List.of())
+                .subscribe(
+                        values -> {
+                            Map<K, V> byKey = values.stream().collect(Collectors.toMap(keyOf, v -> v, (a, b) -> a));
+                            batch.forEach(p -> {
+                                V value = byKey.get(p.key());
+                                if (value != null) {
+                                    p.sink().tryEmitValue(value);
+                                } else {
+                                    single(p);
+                                }
+                            });
+                        },
+                        t -> {
+                            if (isBulkUnsupported(t)) {
+                                if (bulkSupported) {
+                                    log.warn("Backend has no bulk call for {}; falling back to single calls: {}", name, t.getMessage());
+                                }
+                                bulkSupported = false;
+                                batch.forEach(this::single);
+                            } else {
+                                log.error("Bulk retrieval of {} {} failed", keys.size(), name, t);
+                                batch.forEach(p -> p.sink().tryEmitError(t));
+                            }
+                        });
+    }
+
+    private void single(Pending<K, V> p) {
+        singleCall.apply(p.key()).subscribe(p.sink()::tryEmitValue, p.sink()::tryEmitError, p.sink()::tryEmitEmpty);
+    }
+
+    private record Pending<K, V>(K key, Sinks.One<V> sink) {
+    }
+}
+
+@Data
+@Configuration // This makes it a bean in the context, i.e. injectable
+@ConfigurationProperties(prefix = "demo.batching")
+class BatchingProperties {
+    // Off by default; the SimpleServer mock backend only has single calls.
+    private boolean enabled = false;
+    // How long the first id in a batch waits for company.
+    private Duration window = Duration.ofMillis(5);
+    private int maxBatchSize = 50;
+}
@@ -0,0 +1,69 @@
+package net.leonw.webclientdemo;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.Data;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// A fixed number of calls per downstream, from all F and G retrievers together, and a short queue; everything
+// over that fails right away with a BulkheadFullException. Each downstream has its own connection pool already,
+// but a pool lets 1000 requests wait for a connection for 45 seconds, and all those waiting requests hold on to
+// their callers. With a bulkhead a slow products service costs the products calls, not the order lookups that
+// run next to them on the same Tomcat threads and event loops.
+//
+// Unlike the adaptive limit (DownstreamLimiters) the bulkhead does not move, and it is around the whole retrieval:
+// a call keeps its place through its retries, and a rejection is not retried. The G retrievers answer a
+// rejection with their last-known-good copy.
+//
+// Saturation: demo.bulkhead.in_flight, demo.bulkhead.queued and demo.bulkhead.limit per downstream (name), and the
+// rejections in demo.bulkhead.rejected.
+//
+// Off unless demo.downstream.bulkheads.<name>.enabled=true (or default).
+@Component
+@RequiredArgsConstructor
+class Bulkheads {
+    private final BulkheadProperties props;
+    private final MeterRegistry meterRegistry;
+    private final Map<String, ConcurrencyLimiter> bulkheads = new ConcurrentHashMap<>();
+
+    public <T> Mono<T> isolate(String downstream, Mono<T> call) {
+        var bulkhead = props.forDownstream(downstream);
+        if (!bulkhead.isEnabled()) {
+            return call;
+        }
+        return bulkheads.computeIfAbsent(downstream, name -> new ConcurrencyLimiter(name, bulkhead.getMaxConcurrentCalls(),
+                bulkhead.getMaxQueued(), "demo.bulkhead", BulkheadFullException::new, meterRegistry)).limit(call);
+    }
+}
+
+@Data
+@Configuration // This makes it a bean in the context, i.e. injectable
+@ConfigurationProperties(prefix = "demo.downstream")
+class BulkheadProperties {
+    private Map<String, Bulkhead> bulkheads = new HashMap<>();
+
+    public Bulkhead forDownstream(String name) {
+        return bulkheads.getOrDefault(name, bulkheads.getOrDefault("default", new Bulkhead()));
+    }
+
+    @Data
+    static class Bulkhead {
+        private boolean enabled = false;
+        private int maxConcurrentCalls = 100;
+        // Short: waiting is what the bulkhead is there to prevent
+        private int maxQueued = 20;
+    }
+}
+
+class BulkheadFullException extends RuntimeException {
+    BulkheadFullException(String downstream, int maxConcurrentCalls, int maxQueued) {
+        super(String.format("%s: bulkhead full, %d calls in flight and %d waiting; rejected", downstream, maxConcurrentCalls, maxQueued));
+    }
+}
@@ -0,0 +1,106 @@
+package net.leonw.webclientdemo;
+
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerConfig;
+import io.github.resilience4j.timelimiter.TimeLimiterConfig;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.cloud.circuitbreaker.resilience4j.ReactiveResilience4JCircuitBreakerFactory;
+import org.springframework.cloud.client.circuitbreaker.Customizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// A breaker per G retriever ("orders", "orderlines", "products"), each with its own time limit. The factory default
+// of 1 second failed the enriched orders against the reference backend (see the observations on GOrderRetriever), and
+// one limit does not fit every downstream, so it is 5 seconds here unless configured otherwise. Besides failures the
+// breaker can count slow calls: when the backend answers, but slower than slow-call-duration-threshold for more than
+// slow-call-rate-threshold percent of the window, it opens as well. A backend that got slow is what fills the event
+// loops and the Tomcat threads, and a failure rate does not see it until the timeouts come.
+//
+// Slow call detection is off until slow-call-duration-threshold is set. What is slow depends on the backend (the
+// reference backend takes 2 seconds for everything), and a threshold below its normal latency opens the breaker
+// on a healthy backend after minimum-number-of-calls calls.
+//
+// The resilience4j auto-configuration exports the breakers (resilience4j.circuitbreaker.state, .calls and
+// .not.permitted.calls). On top of that the transitions are counted in demo.circuitbreaker.transitions (name, from,
+// to), and the calls an open breaker refused in demo.circuitbreaker.short_circuited (name).
+//
+// Configured with demo.g.circuit-breakers.<name>.* (or default). A breaker that is not there, like in the tests
+// with a factory of their own, has the defaults of the factory: 1 second and no slow call detection.
+@Slf4j
+@Configuration
+class CircuitBreakerConfiguration {
+    static final List<String> BREAKERS = List.of("orders", "orderlines", "products");
+
+    @Bean
+    public Customizer<ReactiveResilience4JCircuitBreakerFactory> gCircuitBreakers(CircuitBreakerProperties props, MeterRegistry meterRegistry) {
+        return factory -> configure(factory, props, meterRegistry);
+    }
+
+    static void configure(ReactiveResilience4JCircuitBreakerFactory factory, CircuitBreakerProperties props, MeterRegistry meterRegistry) {
+        for (var name : BREAKERS) {
+            var breaker = props.forBreaker(name);
+            factory.configure(builder -> builder
+                    .circuitBreakerConfig(breaker.circuitBreakerConfig())
+                    .timeLimiterConfig(TimeLimiterConfig.custom().timeoutDuration(breaker.getTimeout()).build()), name);
+            var shortCircuited = meterRegistry.counter("demo.circuitbreaker.short_circuited", "name", name);
+            // The factory customizes the breaker on every call; once is enough for listeners
+            factory.addCircuitBreakerCustomizer(Customizer.once(circuitBreaker -> circuitBreaker.getEventPublisher()
+                    .onStateTransition(event -> {
+                        var transition = event.getStateTransition();
+                        log.warn("Circuit breaker {}: {}", name, transition);
+                        meterRegistry.counter("demo.circuitbreaker.transitions", "name", name,
+                                "from", transition.getFromState().name(), "to", transition.getToState().name()).increment();
+                    })
+                    .onCallNotPermitted(event -> shortCircuited.increment()), CircuitBreaker::getName), name);
+        }
+    }
+}
+
+@Data
+@Configuration // This makes it a bean in the context, i.e. injectable
+@ConfigurationProperties(prefix = "demo.g")
+class CircuitBreakerProperties {
+    private Map<String, Breaker> circuitBreakers = new HashMap<>();
+
+    public Breaker forBreaker(String name) {
+        return circuitBreakers.getOrDefault(name, circuitBreakers.getOrDefault("default", new Breaker()));
+    }
+
+    @Data
+    static class Breaker {
+        // For the whole retrieval, retries included: the breaker runs the call with its retryWhen
+        private Duration timeout = Duration.ofSeconds(5);
+        private float failureRateThreshold = 50;
+        private float slowCallRateThreshold = 50;
+        // Well above the normal latency of the backend; none (the default) is no slow call detection
+        private Duration slowCallDurationThreshold;
+        // In calls
+        private int slidingWindowSize = 50;
+        private int minimumNumberOfCalls = 20;
+        private Duration waitDurationInOpenState = Duration.ofSeconds(10);
+        private int permittedNumberOfCallsInHalfOpenState = 5;
+
+        CircuitBreakerConfig circuitBreakerConfig() {
+            var config = CircuitBreakerConfig.custom()
+                    .failureRateThreshold(failureRateThreshold)
+                    .slidingWindowType(CircuitBreakerConfig.SlidingWindowType.COUNT_BASED)
+                    .slidingWindowSize(slidingWindowSize)
+                    .minimumNumberOfCalls(minimumNumberOfCalls)
+                    .waitDurationInOpenState(waitDurationInOpenState)
+                    .permittedNumberOfCallsInHalfOpenState(permittedNumberOfCallsInHalfOpenState);
+            // Otherwise the resilience4j default of 60 seconds, well past the time limit: no call counts as slow
+            if (slowCallDurationThreshold != null) {
+                config.slowCallRateThreshold(slowCallRateThreshold).slowCallDurationThreshold(slowCallDurationThreshold);
+            }
+            return config.build();
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package net.leonw.webclientdemo;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// A reactive semaphore: at most 'limit' Monos run at the same time, at most 'maxQueued' wait for their turn,
+// and the rest is rejected immediately with a ConcurrencyLimitExceededException.
+// Nothing blocks; waiting is just a subscription that has not been passed on yet.
+//
+// flatMap(..., concurrency) does the same for 1 flux. This is for limits that are shared by many requests.
+//
+// The metrics are <prefix>.limit|in_flight|queued|rejected, tagged with the name; demo.concurrency unless the
+// user of the limiter (like a Bulkhead) has its own prefix and its own exception for a rejection.
+class ConcurrencyLimiter {
+    private final String name;
+    private final int maxQueued;
+    private final Rejection rejection;
+    private final Deque<Waiter> waiting = new ArrayDeque<>(); // guarded by this
+    private final Counter rejected;
+    private int limit; // guarded by this
+    private int inFlight; // guarded by this
+
+    ConcurrencyLimiter(String name, int limit, int maxQueued, MeterRegistry meterRegistry) {
+        this(name, limit, maxQueued, "demo.concurrency", ConcurrencyLimitExceededException::new, meterRegistry);
+    }
+
+    ConcurrencyLimiter(String name, int limit, int maxQueued, String metricPrefix, Rejection rejection, MeterRegistry meterRegistry) {
+        this.name = name;
+        this.limit = limit;
+        this.maxQueued = maxQueued;
+        this.rejection = rejection;
+        Gauge.builder(metricPrefix + ".limit", this, ConcurrencyLimiter::getLimit).tag("name", name).register(meterRegistry);
+        Gauge.builder(metricPrefix + ".in_flight", this, ConcurrencyLimiter::getInFlight).tag("name", name).register(meterRegistry);
+        Gauge.builder(metricPrefix + ".queued", this, ConcurrencyLimiter::getQueued).tag("name", name).register(meterRegistry);
+        rejected = meterRegistry.counter(metricPrefix + ".rejected", "name", name);
+    }
+
+    /**
+     * The call is subscribed to when there is room, and its permit is returned when it completes, fails or is cancelled.
+     */
+    public <T> Mono<T> limit(Mono<T> call) {
+        return Mono.usingWhen(acquire(), permit -> call, this::release, (permit, t) -> release(permit), this::release);
+    }
+
+    /**
+     * A higher limit lets waiting calls go right away. A lower limit takes effect as calls finish; nothing is cancelled.
+     */
+    public void setLimit(int newLimit) {
+        var granted = new ArrayList<Waiter>();
+        synchronized (this) {
+            limit = newLimit;
+            while (inFlight < limit && !waiting.isEmpty()) {
+                inFlight++;
+                granted.add(waiting.poll());
+            }
+        }
+        granted.forEach(waiter -> waiter.sink().success(waiter.permit()));
+    }
+
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized int getQueued() {
+        return waiting.size();
+    }
+
+    private Mono<Permit> acquire() {
+        return Mono.create(sink -> {
+            var waiter = new Waiter(sink, new Permit());
+            boolean granted = false;
+            boolean queued = false;
+            synchronized (this) {
+                if (inFlight < limit) {
+                    inFlight++;
+                    granted = true;
+                } else if (waiting.size() < maxQueued) {
+                    waiting.add(waiter);
+                    queued = true;
+                }
+            }
+            if (granted) {
+                sink.success(waiter.permit());
+            } else if (queued) {
+                sink.onCancel(() -> {
+                    boolean removed;
+                    synchronized (this) {
+                        removed = waiting.remove(waiter);
+                    }
+                    if (!removed) {
+                        // We were cancelled while the permit was being handed to us. Pass it on.
+                        releaseNow(waiter.permit());
+                    }
+                });
+            } else {
+                rejected.increment();
+                sink.error(rejection.exception(name, limit, maxQueued));
+            }
+        });
+    }
+
+    private Mono<Void> release(Permit permit) {
+        return Mono.fromRunnable(() -> releaseNow(permit));
+    }
+
+    private void releaseNow(Permit permit) {
+        if (!permit.released.compareAndSet(false, true)) {
+            return;
+        }
+        Waiter next = null;
+        synchronized (this) {
+            // The permit goes straight to the next in line, unless the limit was lowered in the mean time.
+            if (inFlight <= limit) {
+                next = waiting.poll();
+            }
+            if (next == null) {
+                inFlight--;
+            }
+        }
+        if (next != null) {
+            next.sink().success(next.permit());
+        }
+    }
+
+    private static class Permit {
+        private final AtomicBoolean released = new AtomicBoolean();
+    }
+
+    private record Waiter(MonoSink<Permit> sink, Permit permit) {
+    }
+
+    interface Rejection {
+        RuntimeException exception(String name, int limit, int maxQueued);
+    }
+}
+
+class ConcurrencyLimitExceededException extends RuntimeException {
+    ConcurrencyLimitExceededException(String name, int limit, int maxQueued) {
+        super(String.format("%s: %d calls in flight and %d waiting; rejected", name, limit, maxQueued));
+    }
+}
@@ -0,0 +1,102 @@
+package net.leonw.webclientdemo;
+
+import io.micrometer.core.instrument.Metrics;
+import reactor.core.publisher.Flux;
+import reactor.util.context.Context;
+import reactor.util.context.ContextView;
+import reactor.util.retry.Retry;
+import reactor.util.retry.RetryBackoffSpec;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.function.Function;
+
+// The moment the caller stops waiting for us, carried along in the Reactor Context.
+// The controller puts it there:
+//     enrichedOrderService.retrieve(id).contextWrite(Deadline.in(maxDuration))
+// and everything downstream can ask how much time is left:
+// - every outbound call gets the remaining time as timeout, and is not even started when there is no time left
+//   (the filter in ConnectionPools)
+// - retries stop when the remaining time is shorter than the next backoff plus a minimal attempt (Deadline.retry)
+// so no backend capacity is spent on answers nobody will read.
+//
+// A Context only flows upstream through the subscription. Work that we subscribe to ourselves (a batch in the
+// BatchLoader, a cache load) does not see the deadline of the requests waiting for it.
+//
+// Dropped work is counted as demo.deadline.expired{stage=before_call|during_call|retry}. In the global registry,
+// like the reactor netty metrics, because a Deadline is created in too many places to inject a MeterRegistry.
+final class Deadline {
+    private static final String CONTEXT_KEY = Deadline.class.getName();
+    // A retry with less time left than this is not worth starting
+    static final Duration MIN_ATTEMPT = Duration.ofMillis(10);
+
+    private final long expiresAtNanos;
+
+    private Deadline(long expiresAtNanos) {
+        this.expiresAtNanos = expiresAtNanos;
+    }
+
+    /**
+     * For contextWrite. The clock starts at subscription, not at assembly. An existing, earlier deadline wins.
+     */
+    static Function<Context, Context> in(Duration budget) {
+        return context -> {
+            var deadline = new Deadline(System.nanoTime() + budget.toNanos());
+            return from(context).filter(existing -> existing.expiresAtNanos - deadline.expiresAtNanos < 0).isPresent()
+                    ? context
+                    : context.put(CONTEXT_KEY, deadline);
+        };
+    }
+
+    static Optional<Deadline> from(ContextView context) {
+        return context.getOrEmpty(CONTEXT_KEY);
+    }
+
+    /**
+     * The retry spec, but giving up (with DeadlineExceededException) when the deadline would pass before the
+     * next attempt could finish. A DeadlineExceededException is never retried.
+     */
+    static Retry retry(RetryBackoffSpec spec) {
+        return Retry.from(signals -> Flux.deferContextual(context -> {
+            var deadline = from(context);
+            return spec.generateCompanion(signals.handle((signal, sink) -> {
+                if (signal.failure() instanceof DeadlineExceededException) {
+                    sink.error(signal.failure());
+                } else if (deadline.isPresent() && deadline.get().remaining().compareTo(backoff(spec, signal.totalRetries()).plus(MIN_ATTEMPT)) < 0) {
+                    expired("retry");
+                    sink.error(new DeadlineExceededException("No time left for retry " + (signal.totalRetries() + 1), signal.failure()));
+                } else {
+                    sink.next(signal.copy());
+                }
+            }));
+        }));
+    }
+
+    static void expired(String stage) {
+        Metrics.counter("demo.deadline.expired", "stage", stage).increment();
+    }
+
+    Duration remaining() {
+        return Duration.ofNanos(Math.max(0, expiresAtNanos - System.nanoTime()));
+    }
+
+    boolean isExpired() {
+        return expiresAtNanos - System.nanoTime() <= 0;
+    }
+
+    // What the spec waits before the given retry, without the jitter
+    private static Duration backoff(RetryBackoffSpec spec, long retry) {
+        var backoff = spec.minBackoff.multipliedBy(1L << Math.min(retry, 30));
+        return backoff.compareTo(spec.maxBackoff) > 0 ? spec.maxBackoff : backoff;
+    }
+}
+
+class DeadlineExceededException extends RuntimeException {
+    DeadlineExceededException(String message) {
+        super(message);
+    }
+
+    DeadlineExceededException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,349 @@
+package net.leonw.webclientdemo;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import com.fasterxml.jackson.module.blackbird.BlackbirdModule;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.reactivestreams.Publisher;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.web.codec.CodecCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.ResolvableType;
+import org.springframework.core.codec.AbstractDataBufferDecoder;
+import org.springframework.core.codec.DecodingException;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.MediaType;
+import org.springframework.util.MimeType;
+import reactor.core.publisher.Flux;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+// bodyToMono(Order.class) and friends, a few hundred times per enriched order. The generic Jackson2JsonDecoder
+// finds the ObjectMapper for the mime type, builds a JavaType and an ObjectReader (with hints, views, ...) on every
+// response. And bodyToFlux(OrderLine.class) on the bulk calls goes through a non-blocking tokenizer that copies
+// every element into a TokenBuffer before it is read.
+//
+// This decoder only knows our own 3 classes and has their ObjectReaders ready. The body is joined (it is small
+// and bounded by spring.codec.max-in-memory-size anyway) and read straight from the (pooled Netty) buffer,
+// which is released when the stream is closed; a list is read in 1 pass with a MappingIterator.
+// Everything else is left to Jackson2JsonDecoder.
+//
+// Off unless demo.json.precompiled-readers=true, like the other optimisations: the examples show what a plain
+// WebClient does. demo.json.blackbird=true makes Jackson generate the accessors of these 3 classes with
+// LambdaMetafactory instead of reflection. See JsonDecodingBenchmark.
+//
+// demo.json.raw-products=true: a product is not read at all, but kept as the bytes the backend sent (Product.raw,
+// a RawJson). Only its id is looked up; the tokenizer skips the rest without building Strings.
+class DomainJsonDecoder extends AbstractDataBufferDecoder<Object> {
+    static final List<Class<?>> DOMAIN_CLASSES = List.of(Order.class, OrderLine.class, Product.class);
+
+    private final Map<Class<?>, ObjectReader> readers;
+    private final JsonFactory jsonFactory;
+    private final boolean rawProducts;
+
+    DomainJsonDecoder(ObjectMapper objectMapper) {
+        this(objectMapper, false);
+    }
+
+    DomainJsonDecoder(ObjectMapper objectMapper, boolean rawProducts) {
+        super(MediaType.APPLICATION_JSON, new MediaType("application", "*+json"));
+        this.readers = Map.of(
+                Order.class, objectMapper.readerFor(Order.class),
+                OrderLine.class, objectMapper.readerFor(OrderLine.class),
+                Product.class, objectMapper.readerFor(Product.class));
+        this.jsonFactory = objectMapper.getFactory();
+        this.rawProducts = rawProducts;
+    }
+
+    @Override
+    public boolean canDecode(ResolvableType elementType, MimeType mimeType) {
+        return readers.containsKey(elementType.toClass()) && super.canDecode(elementType, mimeType);
+    }
+
+    @Override
+    public Flux<Object> decode(Publisher<DataBuffer> input, ResolvableType elementType, MimeType mimeType, Map<String, Object> hints) {
+        // An array is read as a whole, not per network chunk
+        return DataBufferUtils.join(input, getMaxInMemorySize())
+                .flatMapIterable(buffer -> {
+                    if (isRaw(elementType)) {
+                        return rawProducts(buffer);
+                    }
+                    try (var in = buffer.asInputStream(true)) {
+                        return reader(elementType).readValues(in).readAll();
+                    } catch (IOException e) {
+                        throw new DecodingException("JSON decoding error: " + e.getMessage(), e);
+                    }
+                });
+    }
+
+    @Override
+    public Object decode(DataBuffer buffer, ResolvableType targetType, MimeType mimeType, Map<String, Object> hints) {
+        if (isRaw(targetType)) {
+            var products = rawProducts(buffer);
+            if (products.size() != 1) {
+                throw new DecodingException("JSON decoding error: expected 1 product, got " + products.size());
+            }
+            return products.get(0);
+        }
+        try (var in = buffer.asInputStream(true)) {
+            return reader(targetType).readValue(in);
+        } catch (IOException e) {
+            throw new DecodingException("JSON decoding error: " + e.getMessage(), e);
+        }
+    }
+
+    private boolean isRaw(ResolvableType type) {
+        return rawProducts && type.toClass() == Product.class;
+    }
+
+    // A product or an array of products. The bytes have to leave the (pooled) buffer anyway to be cached, so they
+    // are copied once; every product gets its own slice.
+    private List<Object> rawProducts(DataBuffer buffer) {
+        byte[] json = new byte[buffer.readableByteCount()];
+        buffer.read(json);
+        DataBufferUtils.release(buffer);
+        try (var parser = jsonFactory.createParser(json)) {
+            var products = new ArrayList<>();
+            var token = parser.nextToken();
+            if (token == JsonToken.START_OBJECT) {
+                products.add(rawProduct(parser, json));
+            } else if (token == JsonToken.START_ARRAY) {
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    products.add(rawProduct(parser, json));
+                }
+            }
+            if (parser.currentToken() != JsonToken.END_OBJECT && parser.currentToken() != JsonToken.END_ARRAY) {
+                throw new DecodingException("JSON decoding error: no product or array of products");
+            }
+            return products;
+        } catch (IOException e) {
+            throw new DecodingException("JSON decoding error: " + e.getMessage(), e);
+        }
+    }
+
+    // The parser is on the START_OBJECT of the product, and ends on its END_OBJECT
+    private static Product rawProduct(JsonParser parser, byte[] json) throws IOException {
+        int start = (int) parser.getTokenLocation().getByteOffset();
+        String id = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            var name = parser.currentName();
+            parser.nextToken();
+            if ("id".equals(name)) {
+                id = parser.getValueAsString();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        int end = (int) parser.getCurrentLocation().getByteOffset();
+        return new Product(id, null, new RawJson(start == 0 && end == json.length ? json : Arrays.copyOfRange(json, start, end)));
+    }
+
+    private ObjectReader reader(ResolvableType type) {
+        return readers.get(type.toClass());
+    }
+}
+
+@Slf4j
+@Configuration
+@ConditionalOnProperty(value = "demo.json.precompiled-readers", havingValue = "true")
+class DomainJsonDecoderConfiguration {
+
+    // Applied to the WebClient.Builder of Spring Boot, and so to all WebClients built from it (F, G and the examples)
+    @Bean
+    public CodecCustomizer domainJsonDecoder(ObjectMapper objectMapper, JsonProperties props) {
+        var mapper = props.isBlackbird() ? objectMapper.copy().registerModule(new BlackbirdModule()) : objectMapper;
+        log.info("Precompiled JSON readers for {}{}{}", DomainJsonDecoder.DOMAIN_CLASSES,
+                props.isBlackbird() ? ", with Blackbird" : "", props.isRawProducts() ? ", raw products" : "");
+        return configurer -> configurer.customCodecs().registerWithDefaultConfig(new DomainJsonDecoder(mapper, props.isRawProducts()));
+    }
+}
+
+@Data
+@Configuration // This makes it a bean in the context, i.e. injectable
+@ConfigurationProperties(prefix = "demo.json")
+class JsonProperties {
+    private boolean precompiledReaders = false;
+    private boolean blackbird = false;
+    // Products are passed on as the backend sent them, see RawJson. Needs the precompiled readers.
+    private boolean rawProducts = false;
+}
+
+// JSON as the bytes the backend sent, for a backend whose product data is opaque to us. A product with raw JSON is
+// written into our responses as those bytes (no String for the data, no re-serialization), and the product cache
+// holds just 1 array. Whatever else the backend puts in a product (fields, formatting) is passed on as well.
+//
+// Equal when the bytes are: comparing (or caching) raw products does not parse them.
+final class RawJson {
+    private final byte[] json;
+
+    RawJson(byte[] json) {
+        this.json = json;
+    }
+
+    byte[] bytes() {
+        return json;
+    }
+
+    void writeTo(JsonGenerator generator) throws IOException {
+        generator.writeRawValue(new Utf8Json(json));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof RawJson other && Arrays.equals(json, other.json);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(json);
+    }
+
+    // Enriched orders are logged, that should not print every product
+    @Override
+    public String toString() {
+        return "RawJson(" + json.length + " bytes)";
+    }
+
+    // JSON that already is UTF-8, as a SerializableString. The UTF-8 generator (responses to our clients) copies the
+    // bytes into its buffer; only a char based generator needs the String.
+    private static class Utf8Json implements SerializableString {
+        private final byte[] utf8;
+
+        Utf8Json(byte[] utf8) {
+            this.utf8 = utf8;
+        }
+
+        @Override
+        public String getValue() {
+            return new String(utf8, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public int charLength() {
+            return getValue().length();
+        }
+
+        @Override
+        public char[] asQuotedChars() {
+            return JsonStringEncoder.getInstance().quoteAsString(getValue());
+        }
+
+        @Override
+        public byte[] asUnquotedUTF8() {
+            return utf8;
+        }
+
+        @Override
+        public byte[] asQuotedUTF8() {
+            return JsonStringEncoder.getInstance().quoteAsUTF8(getValue());
+        }
+
+        @Override
+        public int appendQuotedUTF8(byte[] buffer, int offset) {
+            return append(asQuotedUTF8(), buffer, offset);
+        }
+
+        @Override
+        public int appendQuoted(char[] buffer, int offset) {
+            var chars = asQuotedChars();
+            if (offset + chars.length > buffer.length) {
+                return -1;
+            }
+            System.arraycopy(chars, 0, buffer, offset, chars.length);
+            return chars.length;
+        }
+
+        @Override
+        public int appendUnquotedUTF8(byte[] buffer, int offset) {
+            return append(utf8, buffer, offset);
+        }
+
+        @Override
+        public int appendUnquoted(char[] buffer, int offset) {
+            var value = getValue();
+            if (offset + value.length() > buffer.length) {
+                return -1;
+            }
+            value.getChars(0, value.length(), buffer, offset);
+            return value.length();
+        }
+
+        @Override
+        public int writeQuotedUTF8(OutputStream out) throws IOException {
+            var quoted = asQuotedUTF8();
+            out.write(quoted);
+            return quoted.length;
+        }
+
+        @Override
+        public int writeUnquotedUTF8(OutputStream out) throws IOException {
+            out.write(utf8);
+            return utf8.length;
+        }
+
+        @Override
+        public int putQuotedUTF8(ByteBuffer buffer) {
+            return put(asQuotedUTF8(), buffer);
+        }
+
+        @Override
+        public int putUnquotedUTF8(ByteBuffer buffer) {
+            return put(utf8, buffer);
+        }
+
+        // -1 if it does not fit; the generator then writes it in one go
+        private static int append(byte[] bytes, byte[] buffer, int offset) {
+            if (offset + bytes.length > buffer.length) {
+                return -1;
+            }
+            System.arraycopy(bytes, 0, buffer, offset, bytes.length);
+            return bytes.length;
+        }
+
+        private static int put(byte[] bytes, ByteBuffer buffer) {
+            if (bytes.length > buffer.remaining()) {
+                return -1;
+            }
+            buffer.put(bytes);
+            return bytes.length;
+        }
+    }
+}
+
+// A product with raw JSON is those bytes; any other product is its id and data
+class ProductSerializer extends StdSerializer<Product> {
+    ProductSerializer() {
+        super(Product.class);
+    }
+
+    @Override
+    public void serialize(Product product, JsonGenerator generator, SerializerProvider provider) throws IOException {
+        if (product.getRaw() != null) {
+            product.getRaw().writeTo(generator);
+            return;
+        }
+        generator.writeStartObject(product);
+        generator.writeStringField("id", product.getId());
+        generator.writeStringField("data", product.getData());
+        generator.writeEndObject();
+    }
+}
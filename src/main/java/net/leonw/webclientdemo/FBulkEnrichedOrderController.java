@@ -0,0 +1,117 @@
+package net.leonw.webclientdemo;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import reactor.core.Exceptions;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PostConstruct;
+import java.time.Duration;
+import java.time.temporal.ChronoUnit;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+// Many enriched orders in 1 request, for the reporting jobs.
+// - Every distinct order line and product is retrieved once per request, no matter how many orders refer to it.
+// - Per request at most demo.f.bulk.order-concurrency orders and demo.f.bulk.order-line-concurrency lines per
+//   order are retrieved at the same time.
+// - All bulk requests together have at most demo.f.bulk.global-concurrency backend calls in flight, so 10 reporting
+//   jobs at the same time do not take the backend (or our own single-order traffic) down.
+// - Results are streamed as they finish (ask for application/x-ndjson), in no particular order.
+//   A failed order is a result with an error, and does not fail the other orders.
+//
+// You can add ids by ?id=1&id=2&... or ?id=1,2,3,4
+@Slf4j
+@RestController
+@RequiredArgsConstructor
+class FBulkEnrichedOrderController {
+    @NonNull
+    private OrderRetriever orderRetriever;
+    @NonNull
+    private OrderLineRetriever orderLineRetriever;
+    @NonNull
+    private ProductRetriever productRetriever;
+    @NonNull
+    private FMyPreferredSetupControllerProperties props;
+    @NonNull
+    private MeterRegistry meterRegistry;
+    private ConcurrencyLimiter globalLimiter;
+
+    @PostConstruct
+    public void setup() {
+        var bulk = props.getBulk();
+        globalLimiter = new ConcurrencyLimiter("bulk-enriched-orders", bulk.getGlobalConcurrency(), bulk.getGlobalMaxQueued(), meterRegistry);
+    }
+
+    @GetMapping("/f-ultimate-example-perhaps/enriched-orders/")
+    public Flux<BulkEnrichedOrderResult> getEnrichedOrders(@RequestParam("id") Set<String> ids) {
+        var bulk = props.getBulk();
+        // Per request, so the memory is gone when the request is done
+        var orderLines = new Deduplicator<>(orderLineRetriever::retrieve);
+        var products = new Deduplicator<>(productRetriever::retrieve);
+
+        return Flux.fromIterable(ids)
+                .flatMap(id -> globalLimiter.limit(orderRetriever.retrieve(id))
+                                .flatMap(order -> Flux.fromIterable(order.getOrderLineIds())
+                                        .flatMap(orderLineId -> orderLines.get(orderLineId)
+                                                        .flatMap(orderLine -> products.get(orderLine.getProductId())
+                                                                .map(product -> new EnrichedOrderLine(orderLine, product))),
+                                                bulk.getOrderLineConcurrency())
+                                        .collectList()
+                                        .map(enrichedOrderLines -> BulkEnrichedOrderResult.success(id, new EnrichedOrder(order, enrichedOrderLines))))
+                                .timeout(Duration.of(props.getMaxDurationSeconds(), ChronoUnit.SECONDS))
+                                .contextWrite(Deadline.in(Duration.of(props.getMaxDurationSeconds(), ChronoUnit.SECONDS)))
+                                .onErrorResume(t -> {
+                                    log.warn("Retrieving enriched order {} as part of a bulk request failed: {}", id, t.getMessage());
+                                    return Mono.just(BulkEnrichedOrderResult.failure(id, t));
+                                }),
+                        bulk.getOrderConcurrency());
+    }
+
+    // The first ask for an id starts the (globally limited) call, everybody else gets the same cached result.
+    // Only a value is kept: an error (one order's deadline, a 5xx) is for the orders waiting on that call right now,
+    // the next order that needs the id calls again.
+    private class Deduplicator<T> {
+        private final Map<String, Mono<T>> calls = new ConcurrentHashMap<>();
+        private final Function<String, Mono<T>> retrieve;
+
+        Deduplicator(Function<String, Mono<T>> retrieve) {
+            this.retrieve = retrieve;
+        }
+
+        Mono<T> get(String id) {
+            return calls.computeIfAbsent(id, key -> globalLimiter.limit(retrieve.apply(key))
+                    .cache(value -> Duration.ofMillis(Long.MAX_VALUE), error -> Duration.ZERO, () -> Duration.ZERO));
+        }
+    }
+}
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+class BulkEnrichedOrderResult {
+    private String id;
+    private EnrichedOrder enrichedOrder;
+    private String error;
+
+    static BulkEnrichedOrderResult success(String id, EnrichedOrder enrichedOrder) {
+        return new BulkEnrichedOrderResult(id, enrichedOrder, null);
+    }
+
+    static BulkEnrichedOrderResult failure(String id, Throwable t) {
+        // Retries exhausted is not very informative; what went wrong on the last attempt is.
+        var cause = Exceptions.isRetryExhausted(t) && t.getCause() != null ? t.getCause() : t;
+        return new BulkEnrichedOrderResult(id, null, cause.getMessage());
+    }
+}
@@ -1,11 +1,18 @@
 package net.leonw.webclientdemo;
 
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.AllArgsConstructor;
 import lombok.Data;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.codec.ServerSentEvent;
 import org.springframework.stereotype.Component;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
@@ -15,11 +22,15 @@ import org.springframework.web.reactive.function.client.WebClientResponseExcepti
 import org.springframework.web.server.ResponseStatusException;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.util.concurrent.Queues;
 import reactor.util.retry.Retry;
 import reactor.util.retry.RetryBackoffSpec;
 
+import javax.annotation.PostConstruct;
 import java.time.Duration;
 import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
 
 // Refactored to component based so mocking of external dependencies is easy.
 // In this case I added the classes to this file. That is not common in Java though.
@@ -28,29 +39,20 @@ import java.time.temporal.ChronoUnit;
 @Slf4j
 @AllArgsConstructor
 @RestController
+@ConditionalOnProperty(value = "demo.web.non-blocking", havingValue = "false", matchIfMissing = true)
 public class FMyPreferredSetupController {
 
-    private OrderRetriever orderRetriever;
-    private OrderLineRetriever orderLineRetriever;
-    private ProductRetriever productRetriever;
+    private FEnrichedOrderService enrichedOrderService;
     private FMyPreferredSetupControllerProperties props;
 
     @GetMapping("/f-ultimate-example-perhaps/enriched-orders/{id}")
     public EnrichedOrder getEnrichedOrderList(@PathVariable("id") String id) {
         try {
-            return orderRetriever.retrieve(id)
-                    .flatMap(order ->
-                            Flux.fromIterable(order.getOrderLineIds())
-                                    .flatMap(orderLineId -> orderLineRetriever.retrieve(orderLineId))
-                                    .flatMap(orderLine -> productRetriever.retrieve(orderLine.getProductId())
-                                            .map(product -> new EnrichedOrderLine(orderLine, product))
-                                    )
-                                    .collectList()
-                                    .map(enrichedOrderLines -> new EnrichedOrder(order, enrichedOrderLines))
-                    )
-                    .doOnSuccess(completedEnrichedOrder -> log.info("Success retrieving enriched order {}: {}", id, completedEnrichedOrder))
-                    .doOnError(throwable -> log.warn("Retrieving enriched order {} failed", id, throwable))
-                    .block(Duration.of(props.getMaxDurationSeconds(), ChronoUnit.SECONDS)); // Larger timeout since retries can cost.
+            var maxDuration = Duration.of(props.getMaxDurationSeconds(), ChronoUnit.SECONDS);
+            return enrichedOrderService.retrieve(id)
+                    // Nobody below us works on this request after we stopped waiting for it
+                    .contextWrite(Deadline.in(maxDuration))
+                    .block(maxDuration); // Larger timeout since retries can cost.
         } catch (IllegalStateException e) {
             if (e.getMessage() != null && e.getMessage().contains("Timeout on blocking read")) {
                 // Do not print the entire stack trace in the log
@@ -62,11 +64,128 @@ public class FMyPreferredSetupController {
     }
 }
 
+// The same endpoint, but it returns the Mono. Spring MVC subscribes to it and uses servlet async processing,
+// so the Tomcat thread goes back to the pool while we wait for the backend. No block(), so
+// concurrency is no longer limited by server.tomcat.threads.max.
+// Switch with demo.web.non-blocking=true
+@Slf4j
+@AllArgsConstructor
+@RestController
+@ConditionalOnProperty(value = "demo.web.non-blocking", havingValue = "true")
+class FNonBlockingController {
+
+    private FEnrichedOrderService enrichedOrderService;
+    private FMyPreferredSetupControllerProperties props;
+
+    @GetMapping("/f-ultimate-example-perhaps/enriched-orders/{id}")
+    public Mono<EnrichedOrder> getEnrichedOrderList(@PathVariable("id") String id) {
+        var maxDuration = Duration.of(props.getMaxDurationSeconds(), ChronoUnit.SECONDS);
+        return enrichedOrderService.retrieve(id)
+                // timeout instead of block(timeout). Same status for the caller.
+                .timeout(maxDuration)
+                .contextWrite(Deadline.in(maxDuration))
+                .onErrorMap(TimeoutException.class, e -> {
+                    log.warn("Call for enriched order {} aborted: {}", id, e.getMessage());
+                    return new ResponseStatusException(HttpStatus.REQUEST_TIMEOUT, "Please try again later.");
+                });
+    }
+}
+
+// The flow itself, shared by the blocking and the non-blocking controller.
+@Slf4j
+@Component
+@AllArgsConstructor
+class FEnrichedOrderService {
+    private OrderRetriever orderRetriever;
+    private OrderLineRetriever orderLineRetriever;
+    private ProductRetriever productRetriever;
+
+    public Mono<EnrichedOrder> retrieve(String id) {
+        return orderRetriever.retrieve(id)
+                .flatMap(order -> enrichedOrderLines(order, Queues.SMALL_BUFFER_SIZE) // the flatMap default
+                        .collectList()
+                        .map(enrichedOrderLines -> new EnrichedOrder(order, enrichedOrderLines))
+                )
+                .doOnSuccess(completedEnrichedOrder -> log.info("Success retrieving enriched order {}: {}", id, completedEnrichedOrder))
+                .doOnError(throwable -> log.warn("Retrieving enriched order {} failed", id, throwable));
+    }
+
+    public Mono<Order> retrieveOrder(String id) {
+        return orderRetriever.retrieve(id);
+    }
+
+    // In the order they complete, not the order of the order. At most 'concurrency' order lines are retrieved
+    // at the same time; when nobody requests more (a slow client) no new order lines are started.
+    public Flux<EnrichedOrderLine> enrichedOrderLines(Order order, int concurrency) {
+        return Flux.fromIterable(order.getOrderLineIds())
+                .flatMap(orderLineId -> orderLineRetriever.retrieve(orderLineId)
+                                .flatMap(orderLine -> productRetriever.retrieve(orderLine.getProductId())
+                                        .map(product -> new EnrichedOrderLine(orderLine, product))),
+                        concurrency);
+    }
+}
+
+// Streaming version of the F endpoint; same path, but only if you ask for application/x-ndjson or text/event-stream.
+// The order is written first, and then every order line as soon as it (and its product) is retrieved.
+// Nothing is collected, so the client sees the first bytes after 1 backend call instead of after the
+// slowest one, and an order with thousands of lines is never in memory as a whole.
+//
+// Backpressure: Spring MVC requests the next item only after the previous one is written, and the
+// enrichment only has demo.f.streaming-concurrency order lines in flight. A slow client slows us down
+// instead of filling our heap.
+@Slf4j
+@AllArgsConstructor
+@RestController
+class FStreamingController {
+
+    private FEnrichedOrderService enrichedOrderService;
+    private FMyPreferredSetupControllerProperties props;
+
+    // Every line is a json object: first the Order, then EnrichedOrderLines
+    @GetMapping(value = "/f-ultimate-example-perhaps/enriched-orders/{id}", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public Flux<Object> streamEnrichedOrder(@PathVariable("id") String id) {
+        return stream(id);
+    }
+
+    // Event "order" first, then an "orderLine" event per EnrichedOrderLine
+    @GetMapping(value = "/f-ultimate-example-perhaps/enriched-orders/{id}", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public Flux<ServerSentEvent<Object>> streamEnrichedOrderEvents(@PathVariable("id") String id) {
+        return stream(id)
+                .map(item -> ServerSentEvent.builder(item).event(item instanceof Order ? "order" : "orderLine").build());
+    }
+
+    private Flux<Object> stream(String id) {
+        return enrichedOrderService.retrieveOrder(id)
+                .flatMapMany(order -> Flux.concat(
+                        Mono.just(order),
+                        enrichedOrderService.enrichedOrderLines(order, props.getStreamingConcurrency())))
+                // The response is already committed when this happens, so the client just sees the stream end early.
+                .timeout(Duration.of(props.getMaxDurationSeconds(), ChronoUnit.SECONDS))
+                .contextWrite(Deadline.in(Duration.of(props.getMaxDurationSeconds(), ChronoUnit.SECONDS)))
+                .doOnComplete(() -> log.info("Success streaming enriched order {}", id))
+                .doOnError(throwable -> log.warn("Streaming enriched order {} failed", id, throwable));
+    }
+}
+
 @Data
 @Configuration // This makes it a bean in the context, i.e. injectable
 @ConfigurationProperties(prefix = "demo.f") // this makes it read the properties from config and environment
 class FMyPreferredSetupControllerProperties {
     private int maxDurationSeconds = 15;
+    // Order lines retrieved at the same time by the streaming endpoint
+    private int streamingConcurrency = 32;
+    private Bulk bulk = new Bulk();
+
+    @Data
+    static class Bulk {
+        // Orders of 1 bulk request that are enriched at the same time
+        private int orderConcurrency = 8;
+        // Order lines of 1 order that are enriched at the same time
+        private int orderLineConcurrency = 16;
+        // Backend calls in flight for all bulk requests together, and how many may wait for their turn
+        private int globalConcurrency = 64;
+        private int globalMaxQueued = 10_000;
+    }
 }
 
 @Slf4j
@@ -74,52 +193,146 @@ class FMyPreferredSetupControllerProperties {
 @AllArgsConstructor
 class OrderRetriever {
     private static final RetryBackoffSpec RETRY_SPEC = Retry.backoff(3, Duration.ofMillis(100));
+    @Qualifier("ordersWebClient")
     private WebClient webClient;
+    private RequestCoalescer coalescer;
+    private RetryBudgets retryBudgets;
+    private Bulkheads bulkheads;
 
     public Mono<Order> retrieve(String orderId) {
-        return webClient.get()
+        // Everything including the retries is shared, if coalescing is enabled for orders
+        return coalescer.coalesce("orders", orderId, () -> bulkheads.isolate("orders", webClient.get()
                 .uri("/orders/{id}", orderId)
                 .retrieve()
                 .bodyToMono(Order.class)
                 // Not the entire stacktrace for the info level message
                 .doOnError(t -> log.info("[non-final] retrieving order {} failed with message {}", orderId, t.getMessage()))
-                .retryWhen(RETRY_SPEC)
-                .doOnError(t -> log.error("[final] retrieving order order {} has exhausted retries and failed", orderId, t));
+                .retryWhen(retryBudgets.retry("orders", Deadline.retry(RETRY_SPEC)))
+                .doOnError(t -> log.error("[final] retrieving order order {} has exhausted retries and failed", orderId, t))));
     }
 }
 
 @Slf4j
 @Component
-@AllArgsConstructor
+@RequiredArgsConstructor
 class OrderLineRetriever {
     private static final RetryBackoffSpec RETRY_SPEC = Retry.backoff(3, Duration.ofMillis(100));
+    @NonNull
+    @Qualifier("orderLinesWebClient")
     private WebClient webClient;
+    @NonNull
+    private RequestCoalescer coalescer;
+    @NonNull
+    private DownstreamLimiters limiters;
+    @NonNull
+    private DownstreamHedgers hedgers;
+    @NonNull
+    private RetryBudgets retryBudgets;
+    @NonNull
+    private Bulkheads bulkheads;
+    @NonNull
+    private BatchingProperties batchingProperties;
+    @NonNull
+    private MeterRegistry meterRegistry;
+    private BatchLoader<String, OrderLine> batchLoader;
+
+    @PostConstruct
+    public void setup() {
+        batchLoader = new BatchLoader<>("orderlines", batchingProperties, meterRegistry, this::retrieveMany, OrderLine::getId, this::retrieveOne);
+    }
 
     public Mono<OrderLine> retrieve(String orderLineId) {
-        return webClient.get()
-                .uri("/orderlines/{id}", orderLineId)
-                .retrieve()
-                .bodyToMono(OrderLine.class)
+        return coalescer.coalesce("orderlines", orderLineId,
+                () -> batchingProperties.isEnabled() ? batchLoader.load(orderLineId) : retrieveOne(orderLineId));
+    }
+
+    private Mono<OrderLine> retrieveOne(String orderLineId) {
+        // Every attempt (and hedge) gets its own place under the limit; a retry does not keep a slot while it backs off.
+        // The bulkhead is around it all.
+        return bulkheads.isolate("orderlines", hedgers.hedge("orderlines", limiters.limit("orderlines", webClient.get()
+                        .uri("/orderlines/{id}", orderLineId)
+                        .retrieve()
+                        .bodyToMono(OrderLine.class)))
                 .doOnError(t -> log.info("[non-final] retrieving orderLine {} failed with message {}", orderLineId, t.getMessage()))
-                .retryWhen(RETRY_SPEC)
-                .doOnError(t -> log.error("[final] retrieving orderLine {} has exhausted retries and failed", orderLineId, t));
+                .retryWhen(retryBudgets.retry("orderlines", Deadline.retry(RETRY_SPEC)))
+                .doOnError(t -> log.error("[final] retrieving orderLine {} has exhausted retries and failed", orderLineId, t)));
     }
-}
 
+    private Mono<List<OrderLine>> retrieveMany(List<String> orderLineIds) {
+        return bulkheads.isolate("orderlines", limiters.limit("orderlines", webClient.get()
+                        .uri("/orderlines?ids={ids}", String.join(",", orderLineIds))
+                        .retrieve()
+                        .bodyToFlux(OrderLine.class)
+                        .collectList())
+                .doOnError(t -> log.info("[non-final] retrieving {} orderLines failed with message {}", orderLineIds.size(), t.getMessage()))
+                // No retries if there is no bulk call at all; the batch loader will switch to single calls
+                .retryWhen(retryBudgets.retry("orderlines", Deadline.retry(RETRY_SPEC.filter(t -> !BatchLoader.isBulkUnsupported(t))))));
+    }
+}
 
 @Slf4j
 @Component
-@AllArgsConstructor
+@RequiredArgsConstructor
 class ProductRetriever {
     private static final RetryBackoffSpec RETRY_SPEC = Retry.backoff(3, Duration.ofMillis(100));
     public static final Product UNKNOWN_PRODUCT = new Product("", "");
+    @NonNull
+    @Qualifier("productsWebClient")
     private WebClient webClient;
+    @NonNull
+    private RequestCoalescer coalescer;
+    @NonNull
+    private DownstreamLimiters limiters;
+    @NonNull
+    private DownstreamHedgers hedgers;
+    @NonNull
+    private RetryBudgets retryBudgets;
+    @NonNull
+    private Bulkheads bulkheads;
+    @NonNull
+    private ProductCacheProperties cacheProperties;
+    @NonNull
+    private ProductStore productStore;
+    @NonNull
+    private BatchingProperties batchingProperties;
+    @NonNull
+    private MeterRegistry meterRegistry;
+    private ReactiveLoadingCache<String, Product> cache;
+    private BatchLoader<String, Product> batchLoader;
+
+    @PostConstruct
+    public void setup() {
+        // Products almost never change. A 404 is cached for a shorter time; the product may still be created.
+        // Behind the cache is the ProductStore, when enabled, so we do not start cold after a restart.
+        cache = new ReactiveLoadingCache<>("products", cacheProperties, meterRegistry, this::fetch, UNKNOWN_PRODUCT::equals, productStore);
+        batchLoader = new BatchLoader<>("products", batchingProperties, meterRegistry, this::fetchMany, Product::getId, this::fetchOne);
+    }
 
     public Mono<Product> retrieve(String productId) {
-        return webClient.get()
-                .uri("/products/{id}", productId)
-                .retrieve()
-                .bodyToMono(Product.class)
+        return cache.get(productId);
+    }
+
+    private Mono<Product> fetch(String productId) {
+        return coalescer.coalesce("products", productId,
+                () -> batchingProperties.isEnabled() ? batchLoader.load(productId) : fetchOne(productId));
+    }
+
+    // Products missing from the bulk response are retrieved with this call, and so still become UNKNOWN_PRODUCT
+    private Mono<List<Product>> fetchMany(List<String> productIds) {
+        return bulkheads.isolate("products", limiters.limit("products", webClient.get()
+                        .uri("/products?ids={ids}", String.join(",", productIds))
+                        .retrieve()
+                        .bodyToFlux(Product.class)
+                        .collectList())
+                .doOnError(t -> log.info("[non-final] retrieving {} products failed with message {}", productIds.size(), t.getMessage()))
+                .retryWhen(retryBudgets.retry("products", Deadline.retry(RETRY_SPEC.filter(t -> !BatchLoader.isBulkUnsupported(t))))));
+    }
+
+    private Mono<Product> fetchOne(String productId) {
+        return bulkheads.isolate("products", hedgers.hedge("products", limiters.limit("products", webClient.get()
+                        .uri("/products/{id}", productId)
+                        .retrieve()
+                        .bodyToMono(Product.class)))
                 .onErrorReturn(
                         throwable -> {
                             // We basically move the error signal back to the happy flow
@@ -133,8 +346,8 @@ class ProductRetriever {
                         UNKNOWN_PRODUCT // Maybe null would work but reactive flows really don't like null. So then optional would be an option.
                 )
                 .doOnError(t -> log.info("[non-final] retrieving product {} failed with message {}", productId, t.getMessage()))
-                .retryWhen(RETRY_SPEC)
-                .doOnError(t -> log.error("[final] retrieving product {} has exhausted retries and failed", productId, t));
+                .retryWhen(retryBudgets.retry("products", Deadline.retry(RETRY_SPEC)))
+                .doOnError(t -> log.error("[final] retrieving product {} has exhausted retries and failed", productId, t)));
     }
 
 }
\ No newline at end of file
@@ -1,10 +1,13 @@
 package net.leonw.webclientdemo;
 
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NonNull;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.cloud.client.circuitbreaker.ReactiveCircuitBreaker;
 import org.springframework.cloud.client.circuitbreaker.ReactiveCircuitBreakerFactory;
@@ -25,6 +28,7 @@ import reactor.util.retry.RetryBackoffSpec;
 import javax.annotation.PostConstruct;
 import java.time.Duration;
 import java.time.temporal.ChronoUnit;
+import java.util.concurrent.TimeoutException;
 
 // F , but with a _reactive_ circuit breaker added.
 // The normal circuit breakers are blocking and will of course blow up a non-reactive application.
@@ -37,29 +41,20 @@ import java.time.temporal.ChronoUnit;
 @Slf4j
 @AllArgsConstructor
 @RestController
+@ConditionalOnProperty(value = "demo.web.non-blocking", havingValue = "false", matchIfMissing = true)
 public class GMyPreferredSetupWithCircuitBreakerController {
 
-    private GOrderRetriever orderRetriever;
-    private GOrderLineRetriever orderLineRetriever;
-    private GProductRetriever productRetriever;
+    private GEnrichedOrderService enrichedOrderService;
     private GMyPreferredSetupControllerWithCircuitBreakerProperties props;
 
     @GetMapping("/g-with-circuit-breaker/enriched-orders/{id}")
     public EnrichedOrder getEnrichedOrderList(@PathVariable("id") String id) {
         try {
-            return orderRetriever.retrieve(id)
-                    .flatMap(order ->
-                            Flux.fromIterable(order.getOrderLineIds())
-                                    .flatMap(orderLineId -> orderLineRetriever.retrieve(orderLineId))
-                                    .flatMap(orderLine -> productRetriever.retrieve(orderLine.getProductId())
-                                            .map(product -> new EnrichedOrderLine(orderLine, product))
-                                    )
-                                    .collectList()
-                                    .map(enrichedOrderLines -> new EnrichedOrder(order, enrichedOrderLines))
-                    )
-                    .doOnSuccess(completedEnrichedOrder -> log.info("Success retrieving enriched order {}: {}", id, completedEnrichedOrder))
-                    .doOnError(throwable -> log.warn("Retrieving enriched order {} failed", id, throwable))
-                    .block(Duration.of(props.getMaxDurationSeconds(), ChronoUnit.SECONDS)); // Larger timeout since retries can cost.
+            var maxDuration = Duration.of(props.getMaxDurationSeconds(), ChronoUnit.SECONDS);
+            return enrichedOrderService.retrieve(id)
+                    // Nobody below us works on this request after we stopped waiting for it
+                    .contextWrite(Deadline.in(maxDuration))
+                    .block(maxDuration); // Larger timeout since retries can cost.
         } catch (IllegalStateException e) {
             if (e.getMessage() != null && e.getMessage().contains("Timeout on blocking read")) {
                 // Do not print the entire stack trace in the log
@@ -71,6 +66,54 @@ public class GMyPreferredSetupWithCircuitBreakerController {
     }
 }
 
+// See FNonBlockingController
+@Slf4j
+@AllArgsConstructor
+@RestController
+@ConditionalOnProperty(value = "demo.web.non-blocking", havingValue = "true")
+class GNonBlockingController {
+
+    private GEnrichedOrderService enrichedOrderService;
+    private GMyPreferredSetupControllerWithCircuitBreakerProperties props;
+
+    @GetMapping("/g-with-circuit-breaker/enriched-orders/{id}")
+    public Mono<EnrichedOrder> getEnrichedOrderList(@PathVariable("id") String id) {
+        var maxDuration = Duration.of(props.getMaxDurationSeconds(), ChronoUnit.SECONDS);
+        return enrichedOrderService.retrieve(id)
+                .timeout(maxDuration)
+                .contextWrite(Deadline.in(maxDuration))
+                .onErrorMap(TimeoutException.class, e -> {
+                    log.warn("Call for enriched order {} aborted: {}", id, e.getMessage());
+                    return new ResponseStatusException(HttpStatus.REQUEST_TIMEOUT, "Please try again later.");
+                });
+    }
+}
+
+@Slf4j
+@Component
+@AllArgsConstructor
+class GEnrichedOrderService {
+    private GOrderRetriever orderRetriever;
+    private GOrderLineRetriever orderLineRetriever;
+    private GProductRetriever productRetriever;
+
+    // When the backend is out, parts of the answer may be last-known-good copies; see LastKnownGood
+    public Mono<EnrichedOrder> retrieve(String id) {
+        return Staleness.mark(orderRetriever.retrieve(id)
+                .flatMap(order ->
+                        Flux.fromIterable(order.getOrderLineIds())
+                                .flatMap(orderLineId -> orderLineRetriever.retrieve(orderLineId))
+                                .flatMap(orderLine -> productRetriever.retrieve(orderLine.getProductId())
+                                        .map(product -> new EnrichedOrderLine(orderLine, product))
+                                )
+                                .collectList()
+                                .map(enrichedOrderLines -> new EnrichedOrder(order, enrichedOrderLines))
+                ))
+                .doOnSuccess(completedEnrichedOrder -> log.info("Success retrieving enriched order {}: {}", id, completedEnrichedOrder))
+                .doOnError(throwable -> log.warn("Retrieving enriched order {} failed", id, throwable));
+    }
+}
+
 
 @Data
 @Configuration // This makes it a bean in the context, i.e. injectable
@@ -86,8 +129,15 @@ class GMyPreferredSetupControllerWithCircuitBreakerProperties {
 class GOrderRetriever {
     private static final RetryBackoffSpec RETRY_SPEC = Retry.backoff(3, Duration.ofMillis(100));
     @NonNull
+    @Qualifier("ordersWebClient")
     private WebClient webClient;
     @NonNull
+    private RetryBudgets retryBudgets;
+    @NonNull
+    private LastKnownGoods lastKnownGoods;
+    @NonNull
+    private Bulkheads bulkheads;
+    @NonNull
     private ReactiveCircuitBreakerFactory reactiveCircuitBreakerFactory;
     private ReactiveCircuitBreaker circuitBreaker;
 
@@ -99,7 +149,7 @@ class GOrderRetriever {
         // However, instantiating all circuit breakers in a CircuitBreakerConfiguration, or have
         // an OrderRetrieverConfiguration class with its own properties also makes sense.
         // I obviously did not choose that.
-        circuitBreaker = reactiveCircuitBreakerFactory.create("orderRetriever");
+        circuitBreaker = reactiveCircuitBreakerFactory.create("orders");
     }
 
     // Open questions at this point:
@@ -119,14 +169,15 @@ class GOrderRetriever {
     //
     //
     public Mono<Order> retrieve(String orderId) {
-        return circuitBreaker.run(
+        // An open breaker or a timeout is answered with the last order we got, if we have one
+        return lastKnownGoods.serve("orders", orderId, bulkheads.isolate("orders", circuitBreaker.run(
                 webClient.get()
                         .uri("/orders/{id}", orderId)
                         .retrieve()
                         .bodyToMono(Order.class)
                         // Not the entire stacktrace for the info level message
                         .doOnError(t -> log.info("[non-final] retrieving order {} failed with message {}", orderId, t.getMessage()))
-                        .retryWhen(RETRY_SPEC)
+                        .retryWhen(retryBudgets.retry("orders", Deadline.retry(RETRY_SPEC)))
                         .doOnError(t -> log.error("[final] retrieving order order {} has exhausted retries and failed", orderId, t))
                 , throwable -> {
                     // metrics, plus
@@ -141,39 +192,87 @@ class GOrderRetriever {
                         throw new RuntimeException(throwable);
                     }
                 }
-        );
+        )));
     }
 }
 
 @Slf4j
 @Component
-@AllArgsConstructor
+@RequiredArgsConstructor
 class GOrderLineRetriever {
     private static final RetryBackoffSpec RETRY_SPEC = Retry.backoff(3, Duration.ofMillis(100));
+    @NonNull
+    @Qualifier("orderLinesWebClient")
     private WebClient webClient;
+    @NonNull
+    private RetryBudgets retryBudgets;
+    @NonNull
+    private LastKnownGoods lastKnownGoods;
+    @NonNull
+    private Bulkheads bulkheads;
+    @NonNull
+    private ReactiveCircuitBreakerFactory reactiveCircuitBreakerFactory;
+    private ReactiveCircuitBreaker circuitBreaker;
+
+    @PostConstruct
+    public void setup() {
+        circuitBreaker = reactiveCircuitBreakerFactory.create("orderlines");
+    }
 
+    // No fallback: an open breaker (CallNotPermittedException) or a timeout goes to the LastKnownGood
     public Mono<OrderLine> retrieve(String orderLineId) {
-        return webClient.get()
+        return lastKnownGoods.serve("orderlines", orderLineId, bulkheads.isolate("orderlines", circuitBreaker.run(webClient.get()
                 .uri("/orderlines/{id}", orderLineId)
                 .retrieve()
                 .bodyToMono(OrderLine.class)
                 .doOnError(t -> log.info("[non-final] retrieving orderLine {} failed with message {}", orderLineId, t.getMessage()))
-                .retryWhen(RETRY_SPEC)
-                .doOnError(t -> log.error("[final] retrieving orderLine {} has exhausted retries and failed", orderLineId, t));
+                .retryWhen(retryBudgets.retry("orderlines", Deadline.retry(RETRY_SPEC)))
+                .doOnError(t -> log.error("[final] retrieving orderLine {} has exhausted retries and failed", orderLineId, t)))));
     }
 }
 
 
 @Slf4j
 @Component
-@AllArgsConstructor
+@RequiredArgsConstructor
 class GProductRetriever {
     private static final RetryBackoffSpec RETRY_SPEC = Retry.backoff(3, Duration.ofMillis(100));
     public static final Product UNKNOWN_PRODUCT = new Product("", "");
+    @NonNull
+    @Qualifier("productsWebClient")
     private WebClient webClient;
+    @NonNull
+    private RetryBudgets retryBudgets;
+    @NonNull
+    private LastKnownGoods lastKnownGoods;
+    @NonNull
+    private Bulkheads bulkheads;
+    @NonNull
+    private ReactiveCircuitBreakerFactory reactiveCircuitBreakerFactory;
+    @NonNull
+    private ProductCacheProperties cacheProperties;
+    @NonNull
+    private ProductStore productStore;
+    @NonNull
+    private MeterRegistry meterRegistry;
+    private ReactiveCircuitBreaker circuitBreaker;
+    private ReactiveLoadingCache<String, Product> cache;
 
+    @PostConstruct
+    public void setup() {
+        // Around the calls only: cache hits would make a slow products service look fast
+        circuitBreaker = reactiveCircuitBreakerFactory.create("products");
+        // Same settings as the F product cache, but its own entries and metrics.
+        cache = new ReactiveLoadingCache<>("g-products", cacheProperties, meterRegistry, this::fetch, UNKNOWN_PRODUCT::equals, productStore);
+    }
+
+    // The cache has the product for 30 minutes; the last-known-good copy is for when that has expired during an outage
     public Mono<Product> retrieve(String productId) {
-        return webClient.get()
+        return lastKnownGoods.serve("products", productId, cache.get(productId));
+    }
+
+    private Mono<Product> fetch(String productId) {
+        return bulkheads.isolate("products", circuitBreaker.run(webClient.get()
                 .uri("/products/{id}", productId)
                 .retrieve()
                 .bodyToMono(Product.class)
@@ -190,8 +289,8 @@ class GProductRetriever {
                         UNKNOWN_PRODUCT // Maybe null would work but reactive flows really don't like null. So then optional would be an option.
                 )
                 .doOnError(t -> log.info("[non-final] retrieving product {} failed with message {}", productId, t.getMessage()))
-                .retryWhen(RETRY_SPEC)
-                .doOnError(t -> log.error("[final] retrieving product {} has exhausted retries and failed", productId, t));
+                .retryWhen(retryBudgets.retry("products", Deadline.retry(RETRY_SPEC)))
+                .doOnError(t -> log.error("[final] retrieving product {} has exhausted retries and failed", productId, t))));
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,158 @@
+package net.leonw.webclientdemo;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.Data;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.util.context.ContextView;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+// The last answer the backend gave for a key. When the circuit breaker is open (CallNotPermittedException), the
+// bulkhead is full, or the call times out (the time limiter of the breaker, or the Deadline), the caller gets that copy instead of the
+// error, right away, and the call is made again in the background to get a fresh copy for the next caller.
+// An outage then costs freshness, not availability or latency. Any other error (a 404, a 500 within the time
+// limit) is passed on as before, and without a copy the error is passed on as well.
+//
+// A copy is served marked: its age is added to the Staleness in the Reactor Context, and GEnrichedOrderService puts
+// the oldest one in the response (EnrichedOrder.staleMillis).
+@Slf4j
+class LastKnownGood {
+    private final String name;
+    private final Cache<String, Copy> copies;
+    private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+    private final Counter served;
+
+    LastKnownGood(String name, LastKnownGoodProperties props, MeterRegistry meterRegistry) {
+        this.name = name;
+        this.copies = Caffeine.newBuilder()
+                .maximumSize(props.getMaximumSize())
+                // Too old to be any use: the error is better
+                .expireAfterWrite(props.getMaxAge())
+                .build();
+        this.served = meterRegistry.counter("demo.last-known-good.served", "name", name);
+        Gauge.builder("demo.last-known-good.copies", copies, Cache::estimatedSize).tag("name", name).register(meterRegistry);
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> Mono<T> serve(String key, Mono<T> call) {
+        var remembered = call.doOnNext(value -> copies.put(key, new Copy(value, System.nanoTime())));
+        return remembered.onErrorResume(LastKnownGood::isOutage, t -> {
+            var copy = copies.getIfPresent(key);
+            if (copy == null) {
+                return Mono.error(t);
+            }
+            served.increment();
+            refresh(key, remembered);
+            var age = Duration.ofNanos(System.nanoTime() - copy.createdAtNanos);
+            log.info("{} {}: serving the copy of {} ms ago, the call failed with {}", name, key, age.toMillis(), t.toString());
+            return Mono.deferContextual(context -> {
+                Staleness.from(context).ifPresent(staleness -> staleness.add(age));
+                return Mono.just((T) copy.value);
+            });
+        });
+    }
+
+    // One refresh per key at a time. Without the caller's context, so without its deadline: nobody waits for it
+    private void refresh(String key, Mono<?> call) {
+        if (refreshing.add(key)) {
+            call.doFinally(signal -> refreshing.remove(key))
+                    .subscribe(value -> log.debug("{} {}: refreshed", name, key),
+                            t -> log.debug("{} {}: refresh failed with {}", name, key, t.toString()));
+        }
+    }
+
+    static boolean isOutage(Throwable t) {
+        for (var cause = t; cause != null; cause = cause.getCause()) {
+            if (cause instanceof CallNotPermittedException || cause instanceof BulkheadFullException
+                    || cause instanceof TimeoutException || cause instanceof DeadlineExceededException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static class Copy {
+        private final Object value;
+        private final long createdAtNanos;
+
+        Copy(Object value, long createdAtNanos) {
+            this.value = value;
+            this.createdAtNanos = createdAtNanos;
+        }
+    }
+}
+
+// How old the oldest last-known-good copy is in the answer we are building. In the Reactor Context like the
+// Deadline, but filled in from below: the service puts an empty one there, and reads it when the answer is done.
+final class Staleness {
+    private static final String CONTEXT_KEY = Staleness.class.getName();
+
+    private final AtomicLong maxAgeMillis = new AtomicLong(-1);
+
+    static Optional<Staleness> from(ContextView context) {
+        return context.getOrEmpty(CONTEXT_KEY);
+    }
+
+    /**
+     * Runs the answer with a Staleness of its own, and marks it with the age of the oldest copy in it.
+     */
+    static Mono<EnrichedOrder> mark(Mono<EnrichedOrder> answer) {
+        return Mono.defer(() -> {
+            var staleness = new Staleness();
+            return answer
+                    .doOnNext(enrichedOrder -> staleness.get().ifPresent(enrichedOrder::setStaleMillis))
+                    .contextWrite(context -> context.put(CONTEXT_KEY, staleness));
+        });
+    }
+
+    void add(Duration age) {
+        maxAgeMillis.accumulateAndGet(age.toMillis(), Math::max);
+    }
+
+    Optional<Long> get() {
+        long age = maxAgeMillis.get();
+        return age < 0 ? Optional.empty() : Optional.of(age);
+    }
+}
+
+// One per downstream. On unless demo.g.last-known-good.enabled=false
+@Component
+@RequiredArgsConstructor
+class LastKnownGoods {
+    private final LastKnownGoodProperties props;
+    private final MeterRegistry meterRegistry;
+    private final Map<String, LastKnownGood> lastKnownGoods = new ConcurrentHashMap<>();
+
+    public <T> Mono<T> serve(String downstream, String key, Mono<T> call) {
+        if (!props.isEnabled()) {
+            return call;
+        }
+        return lastKnownGoods.computeIfAbsent(downstream, name -> new LastKnownGood(name, props, meterRegistry)).serve(key, call);
+    }
+}
+
+@Data
+@Configuration // This makes it a bean in the context, i.e. injectable
+@ConfigurationProperties(prefix = "demo.g.last-known-good")
+class LastKnownGoodProperties {
+    private boolean enabled = true;
+    // Per downstream
+    private long maximumSize = 10_000;
+    private Duration maxAge = Duration.ofHours(1);
+}
@@ -0,0 +1,422 @@
+package net.leonw.webclientdemo;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// After a deploy the product caches are empty, and every product is a call to /products until they are warm again.
+// This is a second tier behind them that survives a restart: an append-only file of products, memory-mapped as a
+// whole, with the index in a direct ByteBuffer. At startup the file is read once to rebuild the index; after that a
+// product that was known before the restart is a memory read instead of a call.
+//
+// The file is a header (magic, version) and then records: length, written at (millis), key length, key, product JSON.
+// The length is written last, so a record that was half written when the process died is not there. The index is
+// open addressing, 8 bytes per slot: the hash of the key and the position of its newest record.
+//
+// Both budgets are hard: the file is max-file-size (sparse on most file systems) and the index 2 slots per entry of
+// max-entries. When either is full the live records are compacted into a new file: the newest, up to half of both
+// budgets, so compaction does not happen again right away.
+//
+// None of this runs on the event loop. Puts are handed to a single writer thread ("product-store"), and that thread
+// also compacts: a new file, up to max-file-size copied, an fsync and a rename take as long as the disk takes.
+// Meanwhile readers use the old mapping (and the old index), until the new one is swapped in; puts wait their turn.
+// A get reads the mapping on boundedElastic: a product that is not in the page cache is a page fault, i.e. a disk read.
+// Gets share a read lock, so one page fault does not hold up the other gets. Only appending a record (which changes
+// the index in place) and swapping in a compacted mapping take the write lock, and both are short.
+//
+// One store for the F and G product retrievers; they get the same products. Off by default: demo.product-store.*.
+@Slf4j
+@Component
+class ProductStore implements CacheTier<String, Product> {
+    private static final int MAGIC = 0x50524f44; // PROD
+    private static final int VERSION = 1;
+    private static final int HEADER = 8;
+    private static final int RECORD_HEADER = 4 + 8 + 4;
+    private static final int SLOT = 8;
+
+    private final ProductStoreProperties props;
+    private final ObjectMapper objectMapper;
+    private final boolean rawProducts;
+    private final Path path;
+    private final int capacity;
+    private final int slots;
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter compactions;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+        var thread = new Thread(runnable, "product-store");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile boolean enabled;
+    // Guarded by lock. Only the writer changes it, or replaces it
+    private Mapping mapping;
+
+    ProductStore(ProductStoreProperties props, ObjectMapper objectMapper, JsonProperties jsonProperties, MeterRegistry meterRegistry) {
+        if (props.getMaxFileSize().toBytes() > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("demo.product-store.max-file-size must be below 2GB, is " + props.getMaxFileSize());
+        }
+        this.props = props;
+        this.objectMapper = objectMapper;
+        this.rawProducts = jsonProperties.isRawProducts();
+        this.path = Path.of(props.getPath());
+        this.capacity = (int) props.getMaxFileSize().toBytes();
+        this.slots = Integer.highestOneBit(Math.max(props.getMaxEntries(), 1) * 2 - 1) * 2;
+        this.enabled = props.isEnabled();
+        this.hits = meterRegistry.counter("demo.product-store.gets", "result", "hit");
+        this.misses = meterRegistry.counter("demo.product-store.gets", "result", "miss");
+        this.compactions = meterRegistry.counter("demo.product-store.compactions");
+        Gauge.builder("demo.product-store.entries", this, ProductStore::getEntries).register(meterRegistry);
+        Gauge.builder("demo.product-store.bytes", this, ProductStore::getEnd).baseUnit("bytes").register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void open() {
+        if (!enabled) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            Files.createDirectories(path.toAbsolutePath().getParent());
+            var file = map(path);
+            if (file.getInt(0) != MAGIC || file.getInt(4) != VERSION) {
+                file.putInt(HEADER, 0);
+                file.putInt(0, MAGIC).putInt(4, VERSION);
+            }
+            mapping = new Mapping(file);
+            log.info("Product store {}: {} products, {} of {} bytes", path, mapping.entries, mapping.end, capacity);
+        } catch (IOException e) {
+            disable("opening", e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // The puts that were handed to the writer are written first
+    @PreDestroy
+    public void close() {
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(10, TimeUnit.SECONDS)) {
+                log.warn("Product store {}: closed with puts still waiting", path);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        lock.readLock().lock();
+        try {
+            if (mapping != null) {
+                mapping.file.force();
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Mono<Product> get(String productId) {
+        if (!enabled) {
+            return Mono.empty();
+        }
+        return Mono.fromSupplier(() -> {
+            var json = read(productId);
+            if (json == null) {
+                misses.increment();
+                return null;
+            }
+            try {
+                var product = rawProducts ? new Product(productId, null, new RawJson(json)) : objectMapper.readValue(json, Product.class);
+                hits.increment();
+                return product;
+            } catch (IOException e) {
+                log.warn("Product {} in the product store cannot be read, ignoring it: {}", productId, e.getMessage());
+                misses.increment();
+                return null;
+            }
+        }).subscribeOn(Schedulers.boundedElastic());
+    }
+
+    @Override
+    public void put(String productId, Product product) {
+        if (!enabled) {
+            return;
+        }
+        try {
+            writer.execute(() -> {
+                try {
+                    var json = product.getRaw() != null ? product.getRaw().bytes() : objectMapper.writeValueAsBytes(product);
+                    write(productId.getBytes(StandardCharsets.UTF_8), json);
+                } catch (IOException e) {
+                    disable("writing", e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.debug("Product store {} is closed, product {} not written", path, productId);
+        }
+    }
+
+    public int getEntries() {
+        lock.readLock().lock();
+        try {
+            return mapping == null ? 0 : mapping.entries;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int getEnd() {
+        lock.readLock().lock();
+        try {
+            return mapping == null ? 0 : mapping.end;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private byte[] read(String productId) {
+        var key = productId.getBytes(StandardCharsets.UTF_8);
+        lock.readLock().lock();
+        try {
+            return mapping == null ? null : mapping.read(key, System.currentTimeMillis());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // On the writer
+    private void write(byte[] key, byte[] json) throws IOException {
+        if (!enabled) {
+            return;
+        }
+        int length = RECORD_HEADER + key.length + json.length;
+        if (length > (capacity - HEADER) / 2) {
+            log.debug("Product of {} bytes is too big for the product store", length);
+            return;
+        }
+        Mapping current;
+        lock.readLock().lock();
+        try {
+            current = mapping;
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (current.end + length > capacity || current.entries >= props.getMaxEntries()) {
+            compact(current);
+        }
+        lock.writeLock().lock();
+        try {
+            mapping.append(key, json);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // On the writer, without the lock: only the writer changes the mapping, and readers can go on with the old one
+    private void compact(Mapping old) throws IOException {
+        long now = System.currentTimeMillis();
+        var live = old.live(now);
+
+        // The newest, within half of both budgets
+        int from = live.size();
+        long bytes = HEADER;
+        while (from > 0 && live.size() - from < props.getMaxEntries() / 2 && bytes + old.file.getInt(live.get(from - 1)) <= capacity / 2) {
+            bytes += old.file.getInt(live.get(--from));
+        }
+
+        var compacting = path.resolveSibling(path.getFileName() + ".compacting");
+        Files.deleteIfExists(compacting);
+        var target = map(compacting);
+        target.putInt(0, MAGIC).putInt(4, VERSION);
+        int position = HEADER;
+        for (int i = from; i < live.size(); i++) {
+            int length = old.file.getInt(live.get(i));
+            target.put(position, old.file, live.get(i), length);
+            position += length;
+        }
+        if (position + 4 <= capacity) {
+            target.putInt(position, 0);
+        }
+        target.force();
+        Files.move(compacting, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        var compacted = new Mapping(target);
+        lock.writeLock().lock();
+        try {
+            // The old mapping goes when it is garbage collected; there is no unmap in the JDK
+            mapping = compacted;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        compactions.increment();
+        log.info("Product store compacted: {} of {} products kept, {} bytes", compacted.entries, live.size(), compacted.end);
+    }
+
+    private MappedByteBuffer map(Path path) throws IOException {
+        // The mapping stays valid after the channel is closed
+        try (var channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (channel.size() > capacity) {
+                channel.truncate(capacity);
+            }
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+    }
+
+    private static int hash(byte[] key) {
+        int hash = Arrays.hashCode(key);
+        return hash ^ (hash >>> 16);
+    }
+
+    // The product store is a cache; without it we call the backend, like before
+    private void disable(String action, IOException e) {
+        enabled = false;
+        log.error("Product store {} disabled, {} failed", path, action, e);
+    }
+
+    // A mapped file and its index, replaced as a whole by a compaction
+    private class Mapping {
+        private final MappedByteBuffer file;
+        private final ByteBuffer index = ByteBuffer.allocateDirect(slots * SLOT);
+        private int end = HEADER;
+        private int entries;
+
+        // Builds the index from the file
+        Mapping(MappedByteBuffer file) {
+            this.file = file;
+            while (end + RECORD_HEADER <= capacity) {
+                int length = file.getInt(end);
+                int keyLength = length > 0 && end + length <= capacity ? file.getInt(end + 12) : -1;
+                if (keyLength < 0 || RECORD_HEADER + keyLength > length || entries >= props.getMaxEntries()) {
+                    break;
+                }
+                var key = new byte[keyLength];
+                file.get(end + RECORD_HEADER, key);
+                index(key, end);
+                end += length;
+            }
+            if (end + 4 <= capacity) {
+                file.putInt(end, 0);
+            }
+        }
+
+        byte[] read(byte[] key, long now) {
+            int position = position(slot(hash(key), key));
+            if (position < 0 || expired(position, now)) {
+                return null;
+            }
+            var json = new byte[file.getInt(position) - RECORD_HEADER - key.length];
+            file.get(position + RECORD_HEADER + key.length, json);
+            return json;
+        }
+
+        void append(byte[] key, byte[] json) {
+            int length = RECORD_HEADER + key.length + json.length;
+            file.putLong(end + 4, System.currentTimeMillis()).putInt(end + 12, key.length);
+            file.put(end + RECORD_HEADER, key).put(end + RECORD_HEADER + key.length, json);
+            // Whatever a record that was never finished left behind is not the length of a next record
+            if (end + length + 4 <= capacity) {
+                file.putInt(end + length, 0);
+            }
+            file.putInt(end, length);
+            index(key, end);
+            end += length;
+        }
+
+        // The positions of the newest record of every key that has not expired, oldest first
+        List<Integer> live(long now) {
+            var live = new ArrayList<Integer>();
+            for (int slot = 0; slot < slots; slot++) {
+                int position = position(slot);
+                if (position >= 0 && !expired(position, now)) {
+                    live.add(position);
+                }
+            }
+            live.sort(null);
+            return live;
+        }
+
+        private void index(byte[] key, int position) {
+            int hash = hash(key);
+            int slot = slot(hash, key);
+            if (position(slot) < 0) {
+                entries++;
+            }
+            index.putInt(slot * SLOT, hash).putInt(slot * SLOT + 4, position + 1);
+        }
+
+        // The slot of the key, or the empty slot where it goes
+        private int slot(int hash, byte[] key) {
+            int mask = slots - 1;
+            for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+                int position = position(slot);
+                if (position < 0 || (index.getInt(slot * SLOT) == hash && keyEquals(position, key))) {
+                    return slot;
+                }
+            }
+        }
+
+        private int position(int slot) {
+            return index.getInt(slot * SLOT + 4) - 1;
+        }
+
+        private boolean keyEquals(int position, byte[] key) {
+            if (file.getInt(position + 12) != key.length) {
+                return false;
+            }
+            for (int i = 0; i < key.length; i++) {
+                if (file.get(position + RECORD_HEADER + i) != key[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean expired(int position, long now) {
+            return file.getLong(position + 4) + props.getMaxAge().toMillis() < now;
+        }
+    }
+}
+
+@Data
+@Configuration // This makes it a bean in the context, i.e. injectable
+@ConfigurationProperties(prefix = "demo.product-store")
+class ProductStoreProperties {
+    private boolean enabled = false;
+    private String path = Path.of(System.getProperty("java.io.tmpdir"), "webclientdemo", "products.store").toString();
+    // The disk budget. The file is mapped as a whole, so this is also address space (not heap)
+    private DataSize maxFileSize = DataSize.ofMegabytes(64);
+    // The memory budget: the index is 8 bytes per slot, 2 to 4 slots per entry, off heap
+    private int maxEntries = 100_000;
+    // Products almost never change, but after a long downtime we rather ask again
+    private Duration maxAge = Duration.ofDays(1);
+}
@@ -0,0 +1,178 @@
+package net.leonw.webclientdemo;
+
+import com.github.benmanes.caffeine.cache.AsyncCacheLoader;
+import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+// A Mono in front of a Caffeine AsyncLoadingCache.
+// Caffeine is non-blocking if you give it a CompletableFuture: the loader subscribes to the WebClient call and
+// returns immediately, the Netty thread completes the future. Concurrent gets for the same key wait for the
+// same future, so a cache miss is also a coalesced call.
+// Caffeine's eviction is W-TinyLFU, which is nice for our hot products and one-off products mix.
+//
+// Entries that should not be kept (like the UNKNOWN_PRODUCT default for a 404) can be excluded; they are
+// returned to the caller, but expire immediately. They do go into a negative cache of their own, with its own size
+// and a shorter expiry: an id that is known to be missing is not asked again for a while, and does not push out
+// the entries we do want. A negative hit is logged at warn for a sample (negative-hit-log-sample-rate).
+//
+// A second tier (like the ProductStore) is asked before the loader on a miss, and gets every value that is loaded.
+// A refresh skips it: it is there for the cold start, not to keep serving what we already had.
+@Slf4j
+class ReactiveLoadingCache<K, V> {
+    private final String name;
+    private final AsyncLoadingCache<K, V> cache;
+    private final Cache<K, V> negatives;
+    private final Predicate<V> doNotCache;
+    private final double negativeHitLogSampleRate;
+    private final Function<K, Mono<V>> loader;
+    private final boolean enabled;
+
+    ReactiveLoadingCache(String name, ReactiveCacheProperties props, MeterRegistry meterRegistry,
+                         Function<K, Mono<V>> loader, Predicate<V> doNotCache) {
+        this(name, props, meterRegistry, loader, doNotCache, CacheTier.none());
+    }
+
+    ReactiveLoadingCache(String name, ReactiveCacheProperties props, MeterRegistry meterRegistry,
+                         Function<K, Mono<V>> loader, Predicate<V> doNotCache, CacheTier<K, V> secondTier) {
+        this.name = name;
+        this.loader = loader;
+        this.doNotCache = doNotCache;
+        this.negativeHitLogSampleRate = props.getNegativeHitLogSampleRate();
+        this.enabled = props.isEnabled();
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(props.getMaximumSize())
+                .expireAfter(new Expiry<K, V>() {
+                    @Override
+                    public long expireAfterCreate(K key, V value, long currentTime) {
+                        return doNotCache.test(value) ? 0 : props.getExpireAfterWrite().toNanos();
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(K key, V value, long currentTime, long currentDuration) {
+                        return expireAfterCreate(key, value, currentTime);
+                    }
+
+                    @Override
+                    public long expireAfterRead(K key, V value, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                // Refresh is served stale-while-revalidate: the old value is returned while the reload runs.
+                .refreshAfterWrite(props.getRefreshAfterWrite())
+                .removalListener((key, value, cause) -> log.debug("cache {} removed {}: {}", name, key, cause))
+                .recordStats()
+                .buildAsync(new AsyncCacheLoader<K, V>() {
+                    @Override
+                    public CompletableFuture<V> asyncLoad(K key, Executor executor) {
+                        return secondTier.get(key).switchIfEmpty(loadInto(key)).toFuture();
+                    }
+
+                    @Override
+                    public CompletableFuture<V> asyncReload(K key, V oldValue, Executor executor) {
+                        return loadInto(key).toFuture();
+                    }
+
+                    private Mono<V> loadInto(K key) {
+                        return loader.apply(key).doOnNext(value -> {
+                            if (!doNotCache.test(value)) {
+                                secondTier.put(key, value);
+                            }
+                        });
+                    }
+                });
+
+        // hits, misses, evictions, size, load durations. cache.gets{result=hit|miss}, cache.evictions, ...
+        CaffeineCacheMetrics.monitor(meterRegistry, cache.synchronous(), name);
+
+        this.negatives = Caffeine.newBuilder()
+                .maximumSize(props.getNegativeMaximumSize())
+                .expireAfterWrite(props.getNegativeExpireAfterWrite())
+                .recordStats()
+                .build();
+        // cache.gets{cache=products-negative,result=hit} are the ids we did not ask again
+        CaffeineCacheMetrics.monitor(meterRegistry, negatives, name + "-negative");
+    }
+
+    public Mono<V> get(K key) {
+        if (!enabled) {
+            return loader.apply(key);
+        }
+        // defer, otherwise the cache lookup (and possibly the load) would happen during assembly.
+        return Mono.defer(() -> {
+            var negative = negatives.getIfPresent(key);
+            if (negative != null) {
+                if (negativeHitLogSampleRate > 0 && ThreadLocalRandom.current().nextDouble() < negativeHitLogSampleRate) {
+                    log.warn("cache {}: {} is known to be missing, returning the default value", name, key);
+                }
+                return Mono.just(negative);
+            }
+            // The future is shared by everyone waiting for this key: one caller that cancels (its deadline, a
+            // sibling that failed, the losing hedge) must not cancel the load for the others
+            return Mono.fromFuture(cache.get(key), true)
+                    .doOnNext(value -> {
+                        if (doNotCache.test(value)) {
+                            negatives.put(key, value);
+                        }
+                    });
+        });
+    }
+
+    public void invalidateAll() {
+        cache.synchronous().invalidateAll();
+        negatives.invalidateAll();
+    }
+}
+
+// Slower and bigger than Caffeine, but still faster than the backend. get is empty when the key is not there.
+interface CacheTier<K, V> {
+    Mono<V> get(K key);
+
+    void put(K key, V value);
+
+    static <K, V> CacheTier<K, V> none() {
+        return new CacheTier<>() {
+            @Override
+            public Mono<V> get(K key) {
+                return Mono.empty();
+            }
+
+            @Override
+            public void put(K key, V value) {
+            }
+        };
+    }
+}
+
+@Data
+class ReactiveCacheProperties {
+    private boolean enabled = true;
+    private long maximumSize = 10_000;
+    private Duration expireAfterWrite = Duration.ofMinutes(30);
+    // Must be shorter than expireAfterWrite to have any effect
+    private Duration refreshAfterWrite = Duration.ofMinutes(5);
+    // The entries that are not cached, like a 404. Short: the product may still be created. 0s turns it off
+    private long negativeMaximumSize = 10_000;
+    private Duration negativeExpireAfterWrite = Duration.ofMinutes(1);
+    private double negativeHitLogSampleRate = 0.01;
+}
+
+@Configuration // This makes it a bean in the context, i.e. injectable
+@ConfigurationProperties(prefix = "demo.product-cache") // Used by both the F and G product retrievers
+class ProductCacheProperties extends ReactiveCacheProperties {
+}
@@ -0,0 +1,94 @@
+package net.leonw.webclientdemo;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import lombok.Data;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PostConstruct;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+// Single flight, or request coalescing.
+// Under load many enrichments ask for the same hot product at the same moment. Only the first one
+// really needs to go to the backend; everybody arriving while that call is still running can just wait
+// for the same answer. The shared Mono is the *entire* retrieval, retries included, so the waiting
+// subscribers also share the retries and not just the first attempt.
+// As soon as the call finishes (value, error or cancel) it is removed; this is not a cache.
+//
+// It is opt-in per resource type, e.g. demo.coalescing.enabled-for=orders,orderlines,products
+@Component
+@RequiredArgsConstructor
+class RequestCoalescer {
+    private final Map<Key, Mono<?>> inFlight = new ConcurrentHashMap<>();
+    private final RequestCoalescingProperties props;
+    private final MeterRegistry meterRegistry;
+
+    @PostConstruct
+    public void setup() {
+        meterRegistry.gaugeMapSize("demo.coalescing.in_flight", Tags.empty(), inFlight);
+    }
+
+    public boolean isEnabledFor(String resourceType) {
+        return props.getEnabledFor().contains(resourceType);
+    }
+
+    /**
+     * Returns a Mono that shares one subscription to the call with everybody asking for the same
+     * resource type and id while it is in flight. The call is only made if nobody else is already making it.
+     */
+    public <T> Mono<T> coalesce(String resourceType, String id, Supplier<Mono<T>> call) {
+        if (!isEnabledFor(resourceType)) {
+            return call.get();
+        }
+        // defer: the lookup must happen on subscription, not when the pipeline is assembled
+        return Mono.defer(() -> {
+            var key = new Key(resourceType, id);
+            var started = new boolean[]{false};
+            @SuppressWarnings("unchecked")
+            Mono<T> shared = (Mono<T>) inFlight.computeIfAbsent(key, k -> {
+                started[0] = true;
+                return start(k, call);
+            });
+            counter(resourceType, started[0] ? "started" : "joined").increment();
+            return shared;
+        });
+    }
+
+    private <T> Mono<T> start(Key key, Supplier<Mono<T>> call) {
+        // Only remove our own entry. Another call for the same key may have started after we finished.
+        // doOnEach and not doFinally: doFinally runs after the subscribers got their value, so for a short
+        // moment a finished call could still be joined.
+        var self = new AtomicReference<Mono<T>>();
+        Mono<T> shared = Mono.defer(call)
+                .doOnEach(signal -> inFlight.remove(key, self.get()))
+                .doOnCancel(() -> inFlight.remove(key, self.get()))
+                .share();
+        self.set(shared);
+        return shared;
+    }
+
+    private Counter counter(String resourceType, String outcome) {
+        // "joined" is the number of backend calls saved.
+        return meterRegistry.counter("demo.coalescing.calls", "resource", resourceType, "outcome", outcome);
+    }
+
+    private record Key(String resourceType, String id) {
+    }
+}
+
+@Data
+@Configuration
+@ConfigurationProperties(prefix = "demo.coalescing")
+class RequestCoalescingProperties {
+    // orders, orderlines and/or products. Empty means every call goes to the backend on its own.
+    private Set<String> enabledFor = Set.of();
+}
@@ -0,0 +1,156 @@
+package net.leonw.webclientdemo;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.Data;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Hedged requests ("The Tail at Scale"). If a call has not answered after the p95 (configurable) of recent calls,
+// a second identical call is sent. Whichever answers first wins, the other is cancelled.
+// An enriched order waits for its slowest line, so cutting off the tail of the lines cuts the order latency.
+//
+// - Only for idempotent calls. GETs.
+// - The hedge budget: every call earns budgetPercent/100 of a hedge, every hedge costs 1. So at most budgetPercent
+//   extra calls, also when the backend is slow for everybody (then hedging does not help and only adds load).
+// - A failing primary fails right away; it is up to retry what happens next. A failing hedge is ignored, we
+//   still have the primary.
+// - The delay is taken from a timer with a sliding window (1 minute) of the latency of answered calls.
+//   Until there are enough calls, minDelay is used. A snapshot of the timer walks (and copies) its histogram, so
+//   the delay is computed again every REFRESH_SAMPLES answered calls, not for every call.
+class RequestHedger {
+    private static final double MAX_TOKENS = 10;
+    static final int REFRESH_SAMPLES = 20;
+
+    private final HedgingProperties.Hedge props;
+    private final Timer latency;
+    private final Counter sent;
+    private final Counter won;
+    private final Counter overBudget;
+    private final AtomicInteger samples = new AtomicInteger();
+    private volatile Duration delay;
+    private double tokens; // guarded by this
+
+    RequestHedger(String name, HedgingProperties.Hedge props, MeterRegistry meterRegistry) {
+        this.props = props;
+        this.delay = props.getMinDelay();
+        this.latency = Timer.builder("demo.hedging.latency")
+                .description("Latency of answered calls, hedges included; the hedge delay is a percentile of this")
+                .tag("name", name)
+                .publishPercentiles(props.getPercentile())
+                .distributionStatisticExpiry(Duration.ofMinutes(1))
+                .register(meterRegistry);
+        this.sent = meterRegistry.counter("demo.hedging.hedges", "name", name, "outcome", "sent");
+        this.won = meterRegistry.counter("demo.hedging.hedges", "name", name, "outcome", "won");
+        this.overBudget = meterRegistry.counter("demo.hedging.hedges", "name", name, "outcome", "over_budget");
+        Gauge.builder("demo.hedging.delay", this, hedger -> hedger.currentDelay().toNanos())
+                .tag("name", name)
+                .baseUnit("nanoseconds")
+                .register(meterRegistry);
+    }
+
+    public <T> Mono<T> hedge(Mono<T> call) {
+        return Mono.defer(() -> {
+            earn();
+            var delay = currentDelay();
+            var primary = timed(call);
+            var hedge = Mono.delay(delay)
+                    .filter(tick -> spend())
+                    .flatMap(tick -> {
+                        sent.increment();
+                        return timed(call).doOnNext(value -> won.increment());
+                    })
+                    // Budget spent, or the hedge failed: the primary decides.
+                    .switchIfEmpty(Mono.never())
+                    .onErrorResume(t -> Mono.never());
+            return Mono.firstWithSignal(primary, hedge);
+        });
+    }
+
+    Duration currentDelay() {
+        return delay;
+    }
+
+    private Duration percentileDelay() {
+        var snapshot = latency.takeSnapshot();
+        if (snapshot.count() < props.getMinSamples() || snapshot.percentileValues().length == 0) {
+            return props.getMinDelay();
+        }
+        var percentile = Duration.ofNanos((long) snapshot.percentileValues()[0].value(TimeUnit.NANOSECONDS));
+        return percentile.compareTo(props.getMinDelay()) < 0 ? props.getMinDelay() : percentile;
+    }
+
+    private <T> Mono<T> timed(Mono<T> call) {
+        return Mono.defer(() -> {
+            long start = System.nanoTime();
+            return call.doOnSuccess(value -> {
+                latency.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                // Exactly one caller hits each multiple
+                if (samples.incrementAndGet() % REFRESH_SAMPLES == 0) {
+                    delay = percentileDelay();
+                }
+            });
+        });
+    }
+
+    private synchronized void earn() {
+        tokens = Math.min(MAX_TOKENS, tokens + props.getBudgetPercent() / 100.0);
+    }
+
+    private synchronized boolean spend() {
+        if (tokens >= 1) {
+            tokens -= 1;
+            return true;
+        }
+        overBudget.increment();
+        return false;
+    }
+}
+
+// One hedger per downstream. Off unless demo.downstream.hedging.<name>.enabled=true
+@Component
+@RequiredArgsConstructor
+class DownstreamHedgers {
+    private final HedgingProperties props;
+    private final MeterRegistry meterRegistry;
+    private final Map<String, RequestHedger> hedgers = new ConcurrentHashMap<>();
+
+    public <T> Mono<T> hedge(String downstream, Mono<T> call) {
+        var hedge = props.getHedging().get(downstream);
+        if (hedge == null || !hedge.isEnabled()) {
+            return call;
+        }
+        return hedgers.computeIfAbsent(downstream, name -> new RequestHedger(name, hedge, meterRegistry)).hedge(call);
+    }
+}
+
+@Data
+@Configuration // This makes it a bean in the context, i.e. injectable
+@ConfigurationProperties(prefix = "demo.downstream")
+class HedgingProperties {
+    private Map<String, Hedge> hedging = new HashMap<>();
+
+    @Data
+    static class Hedge {
+        private boolean enabled = false;
+        // Send the hedge when the call is slower than this percentile of recent calls
+        private double percentile = 0.95;
+        // Never hedge sooner than this. Also used as long as there are fewer than minSamples calls.
+        private Duration minDelay = Duration.ofMillis(10);
+        private int minSamples = 100;
+        // At most this many hedges per 100 calls
+        private double budgetPercent = 5;
+    }
+}
@@ -0,0 +1,123 @@
+package net.leonw.webclientdemo;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.Data;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Every retriever retries 3 times. Fine for the odd failure, but when the backend browns out every call fails,
+// and 3 retries per call is 4 times the traffic exactly when the backend can least take it.
+//
+// A token bucket per downstream, shared by everybody calling it (F and G): every request adds 'ratio' tokens,
+// every retry takes 1. So in the long run there are at most 'ratio' retries per request (0.2: 20% extra traffic),
+// and the bucket (maxTokens) lets a short burst of failures still be retried.
+// When the bucket is empty the retry fails with a RetryBudgetExhaustedException, with the last failure as cause.
+//
+// The token is taken when the retry is due (after the backoff), so attempts that are never made cost nothing.
+class RetryBudget {
+    private final String name;
+    private final RetryBudgetProperties.Budget props;
+    private final Counter exhausted;
+    private double tokens; // guarded by this
+
+    RetryBudget(String name, RetryBudgetProperties.Budget props, MeterRegistry meterRegistry) {
+        this.name = name;
+        this.props = props;
+        this.tokens = props.getMaxTokens();
+        this.exhausted = meterRegistry.counter("demo.retry.budget.exhausted", "name", name);
+        Gauge.builder("demo.retry.budget.tokens", this, RetryBudget::getTokens).tag("name", name).register(meterRegistry);
+    }
+
+    /**
+     * The retry, but only while there is budget. A subscription is a request, a resubscription a retry.
+     */
+    public Retry wrap(Retry retry) {
+        return Retry.from(signals -> {
+            deposit();
+            var lastFailure = new AtomicReference<Throwable>();
+            return Flux.from(retry.generateCompanion(signals.doOnNext(signal -> lastFailure.set(signal.failure()))))
+                    .concatMap(retryNow -> {
+                        if (tryWithdraw()) {
+                            return Mono.just(retryNow);
+                        }
+                        exhausted.increment();
+                        return Mono.error(new RetryBudgetExhaustedException(name, lastFailure.get()));
+                    });
+        });
+    }
+
+    public synchronized double getTokens() {
+        return tokens;
+    }
+
+    private synchronized void deposit() {
+        tokens = Math.min(props.getMaxTokens(), tokens + props.getRatio());
+    }
+
+    private synchronized boolean tryWithdraw() {
+        if (tokens >= 1) {
+            tokens -= 1;
+            return true;
+        }
+        return false;
+    }
+}
+
+// One budget per downstream. On by default; demo.downstream.retry-budgets.<name>.enabled=false turns it off.
+// As every retry of every retriever passes here, this is also where they are counted: demo.http.client.retries,
+// next to the calls themselves in WebClientInstrumentation. Only the retries actually made, not the ones refused.
+@Component
+@RequiredArgsConstructor
+class RetryBudgets {
+    private final RetryBudgetProperties props;
+    private final MeterRegistry meterRegistry;
+    private final Map<String, RetryBudget> budgets = new ConcurrentHashMap<>();
+    private final Map<String, Counter> retries = new ConcurrentHashMap<>();
+
+    public Retry retry(String downstream, Retry retry) {
+        var budget = props.forDownstream(downstream);
+        var retried = retries.computeIfAbsent(downstream, name -> meterRegistry.counter("demo.http.client.retries", "downstream", name));
+        var budgeted = budget.isEnabled()
+                ? budgets.computeIfAbsent(downstream, name -> new RetryBudget(name, budget, meterRegistry)).wrap(retry)
+                : retry;
+        return Retry.from(signals -> Flux.from(budgeted.generateCompanion(signals)).doOnNext(retryNow -> retried.increment()));
+    }
+}
+
+@Data
+@Configuration // This makes it a bean in the context, i.e. injectable
+@ConfigurationProperties(prefix = "demo.downstream")
+class RetryBudgetProperties {
+    private Map<String, Budget> retryBudgets = new HashMap<>();
+
+    public Budget forDownstream(String name) {
+        return retryBudgets.getOrDefault(name, retryBudgets.getOrDefault("default", new Budget()));
+    }
+
+    @Data
+    static class Budget {
+        private boolean enabled = true;
+        // Retries per request, in the long run
+        private double ratio = 0.2;
+        // Also the start value, so the first failures after startup can be retried
+        private double maxTokens = 10;
+    }
+}
+
+class RetryBudgetExhaustedException extends RuntimeException {
+    RetryBudgetExhaustedException(String downstream, Throwable lastFailure) {
+        super(String.format("%s: retry budget exhausted; not retrying", downstream), lastFailure);
+    }
+}
@@ -0,0 +1,185 @@
+package net.leonw.webclientdemo;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.SimpleCommandLinePropertySource;
+import org.springframework.core.env.StandardEnvironment;
+import org.springframework.http.HttpStatus;
+import reactor.core.publisher.Mono;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+import reactor.netty.http.server.HttpServerResponse;
+
+import java.time.Duration;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.random.RandomGenerator;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+// A stand-in for the SimpleServer backend (/orders, /orderlines and /products on port 8080), on Netty so it
+// does not fall over at 10k concurrent requests, and with the things a real backend does configurable:
+// - latency: fixed (the 2 seconds of the SimpleServer), uniform, or log-normal with a long tail
+// - a share of 503s and 404s
+// - the number of lines per order, and the number of distinct products
+//
+// Repeatable: all randomness comes from 'seed'. Request n gets the n-th draw, so two runs with the same seed and
+// the same number of requests see exactly the same latencies and errors (which request gets which may differ
+// under concurrency), and an order always has the same lines.
+//
+// In-process, next to the application: demo.stub-backend.enabled=true
+// Stand-alone:
+//     mvn exec:java -Dexec.mainClass=net.leonw.webclientdemo.StubBackend -Dexec.args="--demo.stub-backend.latency.distribution=log-normal"
+@Slf4j
+class StubBackend implements AutoCloseable {
+    // Spreads consecutive request numbers over the seed space
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final StubBackendProperties props;
+    private final AtomicLong requests = new AtomicLong();
+    private final DisposableServer server;
+
+    StubBackend(StubBackendProperties props) {
+        this.props = props;
+        this.server = HttpServer.create()
+                .port(props.getPort())
+                .route(routes -> routes
+                        .get("/orders/{id}", (request, response) -> respond(response, () -> order(request.param("id"))))
+                        .get("/orderlines/{id}", (request, response) -> respond(response, () -> orderLine(request.param("id"))))
+                        .get("/products/{id}", (request, response) -> respond(response, () -> product(request.param("id")))))
+                .bindNow();
+        log.info("Stub backend on port {}: {}", server.port(), props);
+    }
+
+    public static void main(String[] args) {
+        // The same property names as in application.properties, but from the command line: --demo.stub-backend.port=9090
+        var environment = new StandardEnvironment();
+        environment.getPropertySources().addFirst(new SimpleCommandLinePropertySource(args));
+        var props = Binder.get(environment).bind("demo.stub-backend", StubBackendProperties.class).orElseGet(StubBackendProperties::new);
+        try (var backend = new StubBackend(props)) {
+            backend.server.onDispose().block();
+        }
+    }
+
+    int port() {
+        return server.port();
+    }
+
+    String baseUrl() {
+        return "http://localhost:" + port();
+    }
+
+    Order order(String id) {
+        int lines = random(id).nextInt(props.getOrderLines().getMin(), props.getOrderLines().getMax() + 1);
+        return new Order(id, IntStream.rangeClosed(1, lines).mapToObj(i -> id + "-" + i).collect(Collectors.toList()));
+    }
+
+    OrderLine orderLine(String id) {
+        return new OrderLine(id, props.getProducts() > 0 ? "p-" + random(id).nextInt(props.getProducts()) : "p-" + id);
+    }
+
+    Product product(String id) {
+        return new Product(id, "data for " + id);
+    }
+
+    /**
+     * How long to wait before answering, drawn from the configured distribution.
+     */
+    static Duration latency(StubBackendProperties.Latency props, RandomGenerator random) {
+        long nanos = switch (props.getDistribution()) {
+            case FIXED -> props.getFixed().toNanos();
+            case UNIFORM -> props.getMin().toNanos() + (long) (random.nextDouble() * (props.getMax().toNanos() - props.getMin().toNanos()));
+            // exp(N(0,1)) has median 1, and sigma stretches the tail: with sigma 1 the p99 is 10x the median.
+            case LOG_NORMAL -> (long) (props.getMedian().toNanos() * Math.exp(props.getSigma() * random.nextGaussian()));
+        };
+        return Duration.ofNanos(Math.max(props.getMin().toNanos(), Math.min(props.getMax().toNanos(), nanos)));
+    }
+
+    private Mono<Void> respond(HttpServerResponse response, Supplier<Object> value) {
+        var random = new SplittableRandom(props.getSeed() + requests.getAndIncrement() * GOLDEN_GAMMA);
+        double failure = random.nextDouble();
+        var latency = latency(props.getLatency(), random);
+        if (failure < props.getErrorRate()) {
+            return Mono.delay(latency).then(response.status(HttpStatus.SERVICE_UNAVAILABLE.value()).send());
+        }
+        if (failure < props.getErrorRate() + props.getNotFoundRate()) {
+            return Mono.delay(latency).then(response.status(HttpStatus.NOT_FOUND.value()).send());
+        }
+        String json;
+        try {
+            json = objectMapper.writeValueAsString(value.get());
+        } catch (JsonProcessingException e) {
+            return Mono.error(e);
+        }
+        return Mono.delay(latency)
+                .then(response.header("Content-Type", "application/json").sendString(Mono.just(json)).then());
+    }
+
+    // The same id always gets the same answer
+    private SplittableRandom random(String id) {
+        return new SplittableRandom(props.getSeed() ^ id.hashCode());
+    }
+
+    @Override
+    public void close() {
+        server.disposeNow();
+    }
+}
+
+@Configuration
+@ConditionalOnProperty(value = "demo.stub-backend.enabled", havingValue = "true")
+class StubBackendConfiguration {
+
+    @Bean(destroyMethod = "close")
+    public StubBackend stubBackend(StubBackendProperties props) {
+        return new StubBackend(props);
+    }
+}
+
+@Data
+@Configuration // This makes it a bean in the context, i.e. injectable
+@ConfigurationProperties(prefix = "demo.stub-backend")
+class StubBackendProperties {
+    private boolean enabled = false;
+    // Where the F and G retrievers look by default (demo.backend.base-url); 0 picks a free port
+    private int port = 8080;
+    private long seed = 42;
+    private Latency latency = new Latency();
+    // Shares of all requests answered with a 503 and a 404
+    private double errorRate = 0;
+    private double notFoundRate = 0;
+    private OrderLines orderLines = new OrderLines();
+    // Distinct products the order lines refer to; 0 is a product per order line
+    private int products = 0;
+
+    @Data
+    static class Latency {
+        private Distribution distribution = Distribution.FIXED;
+        private Duration fixed = Duration.ofSeconds(2);
+        // uniform: between min and max. Also the bounds for log-normal.
+        private Duration min = Duration.ZERO;
+        private Duration max = Duration.ofSeconds(30);
+        // log-normal: half the requests are faster than the median, sigma makes the tail
+        private Duration median = Duration.ofMillis(50);
+        private double sigma = 1.0;
+    }
+
+    @Data
+    static class OrderLines {
+        private int min = 2;
+        private int max = 2;
+    }
+
+    enum Distribution {
+        FIXED, UNIFORM, LOG_NORMAL
+    }
+}
@@ -0,0 +1,30 @@
+package net.leonw.webclientdemo;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.concurrent.Executors;
+
+// Let Tomcat handle every request on its own virtual thread (Java 21).
+// The blocking controllers (A, F, ...) keep their readable block() calls, but a blocked virtual thread is just
+// a parked continuation on the heap and not an OS thread. So server.tomcat.threads.max no longer limits
+// the number of concurrent requests.
+//
+// Reactor's block() waits on a CountDownLatch, which parks a virtual thread properly (no pinning).
+// Switch with demo.web.virtual-threads=true
+@Slf4j
+@Configuration
+@ConditionalOnProperty(value = "demo.web.virtual-threads", havingValue = "true")
+class VirtualThreadConfiguration {
+
+    @Bean
+    public TomcatProtocolHandlerCustomizer<?> virtualThreadExecutor() {
+        return protocolHandler -> {
+            log.info("Tomcat request processing runs on virtual threads");
+            protocolHandler.setExecutor(Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("tomcat-virtual-", 0).factory()));
+        };
+    }
+}
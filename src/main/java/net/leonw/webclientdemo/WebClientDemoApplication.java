@@ -1,27 +1,23 @@
 package net.leonw.webclientdemo;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
-import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.http.HttpStatus;
+import org.springframework.context.annotation.Primary;
 import org.springframework.http.client.reactive.ReactorClientHttpConnector;
-import org.springframework.stereotype.Component;
 import org.springframework.web.reactive.function.client.WebClient;
 import reactor.netty.http.client.HttpClient;
 
-import javax.servlet.*;
-import javax.servlet.http.HttpServletRequest;
-import javax.servlet.http.HttpServletResponse;
-import java.io.IOException;
-import java.time.Duration;
-import java.time.Instant;
 import java.util.List;
 
 @Configuration
@@ -33,54 +29,44 @@ public class WebClientDemoApplication {
         SpringApplication.run(WebClientDemoApplication.class, args);
     }
 
+    // The A-E examples just want "a" WebClient. The F and G retrievers ask for their own; see WebClientPoolConfiguration.
     @Bean
+    @Primary
     @ConditionalOnProperty(value = "my.client.logging.enabled", havingValue = "false", matchIfMissing = true)
-    public WebClient webClient(WebClient.Builder builder) {
-        return builder.baseUrl("http://localhost:8080").build();
+    public WebClient webClient(WebClient.Builder builder, @Value("${demo.backend.base-url:http://localhost:8080}") String baseUrl) {
+        return builder.baseUrl(baseUrl).build();
     }
 
     @Bean
+    @Primary
     @ConditionalOnProperty(value = "my.client.logging.enabled", havingValue = "true")
-    public WebClient webClientWithWireLogging(WebClient.Builder builder) {
+    public WebClient webClientWithWireLogging(WebClient.Builder builder, @Value("${demo.backend.base-url:http://localhost:8080}") String baseUrl) {
         var client = HttpClient.create().wiretap(true); // NOTE: This is the _reactor_ HttpClient.
         return builder
                 .clientConnector(new ReactorClientHttpConnector(client))
-                .baseUrl("http://localhost:8080")
+                .baseUrl(baseUrl)
                 .build();
     }
 
 }
 
-@Slf4j
-@Component
-class TimingFilter implements Filter {
-
-    @Override
-    public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse, FilterChain filterChain) throws IOException, ServletException {
-        Instant start = Instant.now();
-        try {
-            filterChain.doFilter(servletRequest, servletResponse);
-        } finally {
-            HttpServletRequest request = (HttpServletRequest) servletRequest; // Yes. No instanceof. I dare to do this
-            HttpServletResponse response = (HttpServletResponse)servletResponse;
-            HttpStatus status = HttpStatus.valueOf(response.getStatus());
-            log.info("{}{} {} (status {}) took {} ms",
-                    status.isError() ? "FAILED " : "",
-                    request.getMethod(), request.getRequestURI(), status.value(), Duration.between(start, Instant.now()).toMillis());
-        }
-    }
-}
-
-
 @Data
+@NoArgsConstructor
 @AllArgsConstructor
 class EnrichedOrder {
     private Order order;
     private List<EnrichedOrderLine> orderLines;
+    // Only when part of it is a last-known-good copy (G): the age of the oldest copy
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Long staleMillis;
 
+    EnrichedOrder(Order order, List<EnrichedOrderLine> orderLines) {
+        this(order, orderLines, null);
+    }
 }
 
 @Data
+@NoArgsConstructor
 @AllArgsConstructor
 class EnrichedOrderLine {
     private OrderLine orderLine;
@@ -103,10 +89,18 @@ class OrderLine {
     @JsonProperty private String productId;
 }
 
+// With demo.json.raw-products=true only the id is read, and raw holds the bytes the backend sent; the product is
+// then written as those bytes (see DomainJsonDecoder).
 @Data
 @NoArgsConstructor
 @AllArgsConstructor
+@JsonSerialize(using = ProductSerializer.class)
 class Product {
     @JsonProperty private String id;
     @JsonProperty private String data;
+    @JsonIgnore private RawJson raw;
+
+    Product(String id, String data) {
+        this(id, data, null);
+    }
 }
@@ -0,0 +1,167 @@
+package net.leonw.webclientdemo;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.Data;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Mono;
+import reactor.netty.http.HttpProtocol;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// Every downstream (orders, orderlines, products) gets its own WebClient with its own connection pool.
+// A slow products service can then only use up the products connections.
+//
+// The pools are configured with demo.downstream.pools.<name>.*; a pool without configuration gets the
+// settings of demo.downstream.pools.default.*. The plain WebClient bean (used by the A-E examples) keeps
+// using the reactor netty global pool.
+//
+// Reactor netty exports gauges per pool to the global Micrometer registry, which Spring Boot connects to actuator:
+//   reactor.netty.connection.provider.{total,active,idle,pending}.connections{name=<pool>}
+// Acquire latency is not among them, so it is measured here: demo.http.client.pool.acquire{pool=<pool>}
+//
+// Every call on these WebClients respects the Deadline in the Reactor Context, if there is one.
+@Configuration
+@RequiredArgsConstructor
+class WebClientPoolConfiguration {
+    private final ConnectionPools connectionPools;
+    private final WebClient.Builder builder;
+    @Value("${demo.backend.base-url:http://localhost:8080}")
+    private String baseUrl;
+    @Value("${my.client.logging.enabled:false}")
+    private boolean wireLogging;
+
+    @Bean
+    public WebClient ordersWebClient() {
+        return connectionPools.webClient(builder.clone(), "orders", baseUrl, wireLogging);
+    }
+
+    @Bean
+    public WebClient orderLinesWebClient() {
+        return connectionPools.webClient(builder.clone(), "orderlines", baseUrl, wireLogging);
+    }
+
+    @Bean
+    public WebClient productsWebClient() {
+        return connectionPools.webClient(builder.clone(), "products", baseUrl, wireLogging);
+    }
+}
+
+@Slf4j
+@Component
+@RequiredArgsConstructor
+class ConnectionPools {
+    private static final String ACQUIRE_START = ConnectionPools.class.getName() + ".acquireStart";
+
+    private final ConnectionPoolProperties props;
+    private final MeterRegistry meterRegistry;
+    private final Map<String, ConnectionProvider> providers = new ConcurrentHashMap<>();
+    private final Map<String, WebClientInstrumentation> instrumentations = new ConcurrentHashMap<>();
+
+    public WebClient webClient(WebClient.Builder builder, String poolName, String baseUrl, boolean wireLogging) {
+        var acquireTime = Timer.builder("demo.http.client.pool.acquire")
+                .description("Time from starting a request until it has a connection")
+                .tag("pool", poolName)
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        var client = HttpClient.create(connectionProvider(poolName))
+                .protocol(props.forPool(poolName).isH2c()
+                        // Ask for an upgrade to HTTP/2; a backend that does not know h2c just answers in HTTP/1.1.
+                        ? new HttpProtocol[]{HttpProtocol.H2C, HttpProtocol.HTTP11}
+                        : new HttpProtocol[]{HttpProtocol.HTTP11})
+                .wiretap(wireLogging)
+                .doOnRequest((request, connection) -> request.currentContextView().<Long>getOrEmpty(ACQUIRE_START)
+                        .ifPresent(start -> acquireTime.record(System.nanoTime() - start, TimeUnit.NANOSECONDS)));
+        return builder
+                .clientConnector(new ReactorClientHttpConnector(client))
+                // First, so it sees what the caller sees: including the deadline errors below.
+                .filter(instrumentations.computeIfAbsent(poolName, name -> new WebClientInstrumentation(name, meterRegistry)))
+                // The clock starts when the exchange is subscribed to, i.e. when the request wants a connection.
+                // Retries resubscribe, so every attempt is measured on its own.
+                .filter((request, next) -> next.exchange(request)
+                        .contextWrite(ctx -> ctx.put(ACQUIRE_START, System.nanoTime())))
+                // No deadline, no time limit. Note that the timeout is for the response headers; the body is
+                // read after this filter.
+                .filter((request, next) -> Mono.deferContextual(context -> Deadline.from(context)
+                        .map(deadline -> {
+                            if (deadline.isExpired()) {
+                                Deadline.expired("before_call");
+                                return Mono.<ClientResponse>error(new DeadlineExceededException("Deadline passed before " + request.method() + " " + request.url()));
+                            }
+                            return next.exchange(request)
+                                    .timeout(deadline.remaining(), Mono.defer(() -> {
+                                        Deadline.expired("during_call");
+                                        return Mono.error(new DeadlineExceededException("Deadline passed during " + request.method() + " " + request.url()));
+                                    }));
+                        })
+                        .orElseGet(() -> next.exchange(request))))
+                .baseUrl(baseUrl)
+                .build();
+    }
+
+    public ConnectionProvider connectionProvider(String poolName) {
+        return providers.computeIfAbsent(poolName, name -> {
+            var pool = props.forPool(name);
+            log.info("Connection pool {}: {}", name, pool);
+            return ConnectionProvider.builder(name)
+                    .maxConnections(pool.getMaxConnections())
+                    .pendingAcquireMaxCount(pool.getPendingAcquireMaxCount())
+                    .pendingAcquireTimeout(pool.getPendingAcquireTimeout())
+                    .maxIdleTime(pool.getMaxIdleTime())
+                    .maxLifeTime(pool.getMaxLifeTime())
+                    .evictInBackground(pool.getEvictInBackground())
+                    .metrics(true)
+                    .build();
+        });
+    }
+
+    @PreDestroy
+    public void dispose() {
+        providers.values().forEach(ConnectionProvider::dispose);
+    }
+}
+
+@Data
+@Configuration // This makes it a bean in the context, i.e. injectable
+@ConfigurationProperties(prefix = "demo.downstream")
+class ConnectionPoolProperties {
+    private Map<String, Pool> pools = new HashMap<>();
+
+    public Pool forPool(String name) {
+        return pools.getOrDefault(name, pools.getOrDefault("default", new Pool()));
+    }
+
+    @Data
+    static class Pool {
+        private int maxConnections = 500;
+        // Requests waiting for a connection. More than this fail immediately (PoolAcquirePendingLimitException)
+        private int pendingAcquireMaxCount = 1000;
+        private Duration pendingAcquireTimeout = Duration.ofSeconds(45);
+        // Idle connections are closed before the backend (or a load balancer in between) closes them on us.
+        private Duration maxIdleTime = Duration.ofSeconds(30);
+        // Reconnect now and then, so new backend instances get their share.
+        private Duration maxLifeTime = Duration.ofMinutes(5);
+        private Duration evictInBackground = Duration.ofSeconds(30);
+        // Cleartext HTTP/2: many concurrent requests share a few connections instead of 1 connection each.
+        // maxConnections then limits connections, not requests; the backend decides how many streams per connection.
+        // So set maxConnections low (a handful) as well: until a connection has been upgraded it carries 1 request,
+        // and a cold burst would open a connection per request.
+        private boolean h2c = false;
+    }
+}
@@ -0,0 +1,121 @@
+package net.leonw.webclientdemo;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.codec.DecodingException;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.reactive.function.client.WebClientRequestException;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.net.ConnectException;
+import java.net.URI;
+import java.time.Duration;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// A backend that answers in 5 ms, and then suddenly takes 100 ms.
+// The callers keep pushing 100 calls at a time; the limiter decides how many the backend sees.
+class AdaptiveConcurrencyLimiterTest {
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final AtomicReference<Duration> latency = new AtomicReference<>(Duration.ofMillis(5));
+    private final AtomicInteger backendInFlight = new AtomicInteger();
+    private final AtomicInteger backendMaxInFlight = new AtomicInteger();
+
+    @Test
+    void the_limit_grows_while_healthy_and_drops_when_the_backend_degrades() {
+        var props = new DownstreamLimitProperties.Limit();
+        props.setInitialLimit(10);
+        props.setMinLimit(2);
+        props.setMaxLimit(50);
+        var limiter = new AdaptiveConcurrencyLimiter("backend", props, meterRegistry);
+
+        load(limiter, Duration.ofSeconds(1));
+        int healthyLimit = limiter.getLimit();
+        assertTrue(healthyLimit > 10, "limit " + healthyLimit);
+
+        latency.set(Duration.ofMillis(100));
+        backendMaxInFlight.set(0);
+        load(limiter, Duration.ofSeconds(1));
+        int degradedLimit = limiter.getLimit();
+
+        assertTrue(degradedLimit <= healthyLimit / 2, "limit " + healthyLimit + " -> " + degradedLimit);
+        assertTrue(degradedLimit >= 2);
+        // The backend never saw the 100 concurrent calls of the callers
+        assertTrue(backendMaxInFlight.get() <= healthyLimit, "backend saw " + backendMaxInFlight.get());
+        assertTrue(meterRegistry.counter("demo.concurrency.limit.decreases", "name", "backend").count() > 0);
+        assertEquals(degradedLimit, meterRegistry.get("demo.concurrency.limit").tag("name", "backend").gauge().value());
+    }
+
+    @Test
+    void errors_that_are_not_about_load_do_not_lower_the_limit() {
+        assertFalse(AdaptiveConcurrencyLimiter.isOverload(WebClientResponseException.create(404, "Not Found", null, null, null)));
+        assertTrue(AdaptiveConcurrencyLimiter.isOverload(WebClientResponseException.create(503, "Service Unavailable", null, null, null)));
+        assertTrue(AdaptiveConcurrencyLimiter.isOverload(WebClientResponseException.create(HttpStatus.TOO_MANY_REQUESTS.value(), "Too Many Requests", null, null, null)));
+        assertFalse(AdaptiveConcurrencyLimiter.isOverload(WebClientResponseException.create(500, "Internal Server Error", null, null, null)));
+        assertTrue(AdaptiveConcurrencyLimiter.isOverload(new TimeoutException("Did not observe any item")));
+        assertTrue(AdaptiveConcurrencyLimiter.isOverload(new WebClientRequestException(new ConnectException("Connection refused"), HttpMethod.GET, URI.create("http://backend/products/p1"), new HttpHeaders())));
+        assertFalse(AdaptiveConcurrencyLimiter.isOverload(new DecodingException("JSON decoding error")));
+        assertFalse(AdaptiveConcurrencyLimiter.isOverload(new DeadlineExceededException("No time left for retry 2", new TimeoutException())));
+    }
+
+    @Test
+    void the_callers_deadline_does_not_lower_the_limit() {
+        var props = new DownstreamLimitProperties.Limit();
+        props.setInitialLimit(10);
+        // Only the errors count here, not a call that happens to be slow
+        props.setTolerance(1000);
+        var limiter = new AdaptiveConcurrencyLimiter("backend", props, meterRegistry);
+
+        Flux.range(0, 20)
+                .concatMap(i -> limiter.limit(Mono.delay(Duration.ofMillis(5))
+                                .then(Mono.error(new DeadlineExceededException("Deadline passed during GET /products/p" + i))))
+                        .onErrorResume(DeadlineExceededException.class, t -> Mono.empty()))
+                .blockLast(Duration.ofSeconds(5));
+
+        assertEquals(10, limiter.getLimit());
+        assertEquals(0, meterRegistry.counter("demo.concurrency.limit.decreases", "name", "backend").count());
+    }
+
+    @Test
+    void a_full_queue_rejects() {
+        var props = new DownstreamLimitProperties.Limit();
+        props.setInitialLimit(1);
+        props.setMaxQueued(1);
+        var limiter = new AdaptiveConcurrencyLimiter("small", props, meterRegistry);
+        // Slow enough that the first call is still running when the third arrives
+        latency.set(Duration.ofMillis(200));
+
+        var results = Flux.range(0, 3)
+                .flatMap(i -> limiter.limit(backendCall()).map(v -> "ok").onErrorReturn(ConcurrencyLimitExceededException.class, "rejected"))
+                .collectList()
+                .block(Duration.ofSeconds(5));
+
+        assertEquals(2, results.stream().filter("ok"::equals).count());
+        assertEquals(1, results.stream().filter("rejected"::equals).count());
+    }
+
+    private void load(AdaptiveConcurrencyLimiter limiter, Duration duration) {
+        Flux.range(0, Integer.MAX_VALUE)
+                .flatMap(i -> limiter.limit(backendCall()), 100)
+                .take(duration)
+                .blockLast(duration.plusSeconds(5));
+    }
+
+    private Mono<String> backendCall() {
+        return Mono.defer(() -> {
+            backendMaxInFlight.accumulateAndGet(backendInFlight.incrementAndGet(), Math::max);
+            return Mono.delay(latency.get())
+                    .map(tick -> "done")
+                    .doFinally(signal -> backendInFlight.decrementAndGet());
+        });
+    }
+}
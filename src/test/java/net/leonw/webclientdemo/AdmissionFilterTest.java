@@ -0,0 +1,132 @@
+package net.leonw.webclientdemo;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AdmissionFilterTest {
+    private static final String ENRICHED_ORDER = "/g-with-circuit-breaker/enriched-orders/o1";
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final CountDownLatch backendIsSlow = new CountDownLatch(1);
+    private final ExecutorService tomcat = Executors.newFixedThreadPool(4);
+    private AdmissionFilter filter;
+
+    @BeforeEach
+    void initialize() {
+        var props = new AdmissionProperties();
+        props.setEnabled(true);
+        props.setMaxInFlight(2);
+        filter = new AdmissionFilter(props, meterRegistry);
+    }
+
+    @AfterEach
+    void tearDown() {
+        backendIsSlow.countDown();
+        tomcat.shutdownNow();
+    }
+
+    @Test
+    void over_the_limit_is_rejected_right_away() throws Exception {
+        var first = tomcat.submit(() -> call(ENRICHED_ORDER, null, backendIsSlow));
+        var second = tomcat.submit(() -> call(ENRICHED_ORDER, null, backendIsSlow));
+        TestUtils.eventually(() -> filter.getInFlight() == 2);
+
+        var rejected = call(ENRICHED_ORDER, null, null);
+
+        assertEquals(503, rejected.getStatus());
+        assertEquals("1", rejected.getHeader("Retry-After"));
+        assertEquals(1, meterRegistry.get("demo.admission.rejected").tag("reason", "in_flight").counter().count());
+        assertEquals(2, meterRegistry.get("demo.admission.max_in_flight").gauge().value());
+
+        backendIsSlow.countDown();
+        assertEquals(200, status(first));
+        assertEquals(200, status(second));
+        assertEquals(0, filter.getInFlight());
+        assertEquals(200, call(ENRICHED_ORDER, null, null).getStatus());
+    }
+
+    @Test
+    void a_request_that_waited_too_long_is_not_started() throws Exception {
+        long now = System.currentTimeMillis();
+
+        assertEquals(503, call(ENRICHED_ORDER, "t=" + (now - 5000), null).getStatus());
+        assertEquals(503, call(ENRICHED_ORDER, String.format("t=%d.%03d", (now - 5000) / 1000, (now - 5000) % 1000), null).getStatus());
+        assertEquals(200, call(ENRICHED_ORDER, "t=" + now, null).getStatus());
+        assertEquals(200, call(ENRICHED_ORDER, "garbage", null).getStatus());
+
+        assertEquals(2, meterRegistry.get("demo.admission.rejected").tag("reason", "queue_time").counter().count());
+        assertEquals(3, meterRegistry.get("demo.admission.queue_time").timer().count());
+    }
+
+    @Test
+    void other_endpoints_are_not_limited() throws Exception {
+        var first = tomcat.submit(() -> call(ENRICHED_ORDER, null, backendIsSlow));
+        var second = tomcat.submit(() -> call(ENRICHED_ORDER, null, backendIsSlow));
+        TestUtils.eventually(() -> filter.getInFlight() == 2);
+
+        assertEquals(200, call("/actuator/health", null, null).getStatus());
+
+        backendIsSlow.countDown();
+        assertEquals(200, status(first));
+        assertEquals(200, status(second));
+    }
+
+    // Filters are applied in their @Order, here by hand: the LatencyFilter first
+    @Test
+    void a_rejected_request_is_in_the_latency_of_what_we_served() throws Exception {
+        var latencyFilter = new LatencyFilter(new LatencyProperties());
+        var request = new MockHttpServletRequest("GET", ENRICHED_ORDER);
+        request.addHeader(AdmissionFilter.REQUEST_START, "t=" + (System.currentTimeMillis() - 5000));
+        var response = new MockHttpServletResponse();
+
+        new MockFilterChain(new HttpServlet() {
+        }, latencyFilter, filter).doFilter(request, response);
+
+        assertEquals(503, response.getStatus());
+        assertTrue(LatencyFilter.ORDER < AdmissionFilter.ORDER);
+        latencyFilter.recorder().rotate();
+        assertEquals(1, latencyFilter.recorder().lastInterval().get(LatencyFilter.UNMATCHED).get("5xx").getTotalCount());
+    }
+
+    private static int status(Future<MockHttpServletResponse> response) throws Exception {
+        return response.get().getStatus();
+    }
+
+    private MockHttpServletResponse call(String uri, String requestStart, CountDownLatch backend) throws Exception {
+        var request = new MockHttpServletRequest("GET", uri);
+        if (requestStart != null) {
+            request.addHeader(AdmissionFilter.REQUEST_START, requestStart);
+        }
+        var response = new MockHttpServletResponse();
+        filter.doFilter(request, response, new MockFilterChain(new HttpServlet() {
+            @Override
+            protected void service(HttpServletRequest req, HttpServletResponse resp) {
+                try {
+                    if (backend != null) {
+                        backend.await();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                resp.setStatus(200);
+            }
+        }));
+        return response;
+    }
+}
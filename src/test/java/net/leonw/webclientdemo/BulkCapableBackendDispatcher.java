@@ -0,0 +1,87 @@
+package net.leonw.webclientdemo;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import okhttp3.HttpUrl;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+// A local stand-in for the backend that also knows the bulk calls: /orderlines?ids=a,b and /products?ids=a,b
+// Order x has order lines x-1 and x-2, order line x has product p-x.
+// Ids in 'missing' give a 404 (and are left out of bulk responses).
+// With bulkSupported false the bulk calls give a 404, like the SimpleServer would.
+// Every response takes 'latency', like the 2 seconds of the SimpleServer.
+class BulkCapableBackendDispatcher extends Dispatcher {
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final boolean bulkSupported;
+    private final Set<String> missing;
+    private final Duration latency;
+
+    BulkCapableBackendDispatcher(boolean bulkSupported, Set<String> missing) {
+        this(bulkSupported, missing, Duration.ZERO);
+    }
+
+    BulkCapableBackendDispatcher(boolean bulkSupported, Set<String> missing, Duration latency) {
+        this.bulkSupported = bulkSupported;
+        this.missing = missing;
+        this.latency = latency;
+    }
+
+    @Override
+    public MockResponse dispatch(RecordedRequest request) {
+        HttpUrl url = request.getRequestUrl();
+        var segments = url.pathSegments();
+        String ids = url.queryParameter("ids");
+        if (segments.size() == 1 && ids != null) {
+            return bulkSupported ? json(Arrays.stream(ids.split(",")).map(entity(segments.get(0))).filter(Objects::nonNull).collect(Collectors.toList())) : notFound();
+        }
+        if (segments.size() == 2) {
+            var value = entity(segments.get(0)).apply(segments.get(1));
+            return value != null ? json(value) : notFound();
+        }
+        return notFound();
+    }
+
+    private Function<String, Object> entity(String resource) {
+        return id -> {
+            if (missing.contains(id)) {
+                return null;
+            }
+            switch (resource) {
+                case "orders":
+                    return new Order(id, List.of(id + "-1", id + "-2"));
+                case "orderlines":
+                    return new OrderLine(id, "p-" + id);
+                case "products":
+                    return new Product(id, "data for " + id);
+                default:
+                    return null;
+            }
+        };
+    }
+
+    private MockResponse json(Object value) {
+        try {
+            return new MockResponse()
+                    .setHeadersDelay(latency.toMillis(), TimeUnit.MILLISECONDS)
+                    .setBody(objectMapper.writeValueAsString(value))
+                    .addHeader("Content-Type", "application/json");
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private MockResponse notFound() {
+        return new MockResponse().setHeadersDelay(latency.toMillis(), TimeUnit.MILLISECONDS).setResponseCode(404);
+    }
+}
@@ -0,0 +1,109 @@
+package net.leonw.webclientdemo;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// The worst case: orders and products share 1 WebClient with a pool of 4 connections, and products take a second.
+// A burst of 20 products would hold all 4 connections, and every order would wait a second behind them.
+// With a bulkhead of 2 (and 2 waiting) for products, orders keep their connections and stay fast, and the
+// products over the bulkhead fail right away.
+class BulkheadTest {
+    private static final Duration SLOW_PRODUCTS = Duration.ofSeconds(1);
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private MockWebServer backend;
+    private ConnectionPools connectionPools;
+    private OrderRetriever orderRetriever;
+    private ProductRetriever productRetriever;
+
+    @BeforeEach
+    void initialize() throws IOException {
+        var objectMapper = new ObjectMapper();
+        backend = new MockWebServer();
+        backend.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                try {
+                    var id = request.getPath().substring(request.getPath().lastIndexOf('/') + 1);
+                    return request.getPath().startsWith("/products/")
+                            ? json(objectMapper.writeValueAsString(new Product(id, "data"))).setHeadersDelay(SLOW_PRODUCTS.toMillis(), TimeUnit.MILLISECONDS)
+                            : json(objectMapper.writeValueAsString(new Order(id, List.of())));
+                } catch (IOException e) {
+                    return new MockResponse().setResponseCode(500);
+                }
+            }
+        });
+        backend.start();
+
+        var pool = new ConnectionPoolProperties.Pool();
+        pool.setMaxConnections(4);
+        var poolProps = new ConnectionPoolProperties();
+        poolProps.getPools().put("shared", pool);
+        connectionPools = new ConnectionPools(poolProps, meterRegistry);
+        var webClient = connectionPools.webClient(WebClient.builder(), "shared", backend.url("/").toString(), false);
+
+        var bulkhead = new BulkheadProperties.Bulkhead();
+        bulkhead.setEnabled(true);
+        bulkhead.setMaxConcurrentCalls(2);
+        bulkhead.setMaxQueued(2);
+        var bulkheadProps = new BulkheadProperties();
+        bulkheadProps.getBulkheads().put("products", bulkhead);
+        var bulkheads = new Bulkheads(bulkheadProps, meterRegistry);
+
+        orderRetriever = new OrderRetriever(webClient, TestUtils.noCoalescing(), TestUtils.noRetryBudget(), bulkheads);
+        productRetriever = new ProductRetriever(webClient, TestUtils.noCoalescing(), TestUtils.noLimits(), TestUtils.noHedging(), TestUtils.noRetryBudget(),
+                bulkheads, TestUtils.noProductCache(), TestUtils.noProductStore(), new BatchingProperties(), meterRegistry);
+        productRetriever.setup();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        connectionPools.dispose();
+        backend.shutdown();
+    }
+
+    @Test
+    void order_latency_stays_flat_while_products_are_degraded() {
+        var products = Flux.range(0, 20)
+                .flatMap(i -> productRetriever.retrieve("p" + i).map(p -> "ok")
+                        .onErrorResume(BulkheadFullException.class, t -> Mono.just("rejected")), 20)
+                .collectList()
+                .toFuture();
+        TestUtils.eventually(() -> meterRegistry.get("demo.bulkhead.in_flight").tag("name", "products").gauge().value() == 2);
+        assertEquals(2, meterRegistry.get("demo.bulkhead.queued").tag("name", "products").gauge().value());
+
+        for (int i = 0; i < 10; i++) {
+            long start = System.nanoTime();
+            assertEquals("o" + i, orderRetriever.retrieve("o" + i).block(Duration.ofSeconds(5)).getId());
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertTrue(millis < SLOW_PRODUCTS.toMillis() / 2, "order " + i + " took " + millis + " ms");
+        }
+
+        var outcomes = products.join();
+        assertEquals(4, outcomes.stream().filter("ok"::equals).count());
+        assertEquals(16, outcomes.stream().filter("rejected"::equals).count());
+        assertEquals(16, meterRegistry.get("demo.bulkhead.rejected").tag("name", "products").counter().count());
+    }
+
+    private static MockResponse json(String body) {
+        return new MockResponse().setHeader("content-type", "application/json").setBody(body);
+    }
+}
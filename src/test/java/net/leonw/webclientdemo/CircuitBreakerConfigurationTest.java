@@ -0,0 +1,115 @@
+package net.leonw.webclientdemo;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.cloud.circuitbreaker.resilience4j.ReactiveResilience4JCircuitBreakerFactory;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+import reactor.test.StepVerifier;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// The backend answers every order line, but in 300 ms ("slow-" in 1.5 seconds). Nothing fails, and without slow call
+// detection the breaker stays closed. With a slow call threshold of 100 ms it opens after a window of 4.
+class CircuitBreakerConfigurationTest {
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private MockWebServer backend;
+    private GOrderLineRetriever retriever;
+
+    @BeforeEach
+    void initialize() throws IOException {
+        var objectMapper = new ObjectMapper();
+        backend = new MockWebServer();
+        backend.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                var id = request.getPath().substring(request.getPath().lastIndexOf('/') + 1);
+                try {
+                    return new MockResponse().setHeader("content-type", "application/json")
+                            .setBody(objectMapper.writeValueAsString(new OrderLine(id, "p1")))
+                            .setHeadersDelay(id.startsWith("very-slow") ? 2000 : id.startsWith("slow-") ? 1500 : 300, TimeUnit.MILLISECONDS);
+                } catch (IOException e) {
+                    return new MockResponse().setResponseCode(500);
+                }
+            }
+        });
+        backend.start();
+
+        var breaker = new CircuitBreakerProperties.Breaker();
+        breaker.setTimeout(Duration.ofSeconds(1));
+        breaker.setSlowCallDurationThreshold(Duration.ofMillis(100));
+        breaker.setSlidingWindowSize(4);
+        breaker.setMinimumNumberOfCalls(4);
+        breaker.setWaitDurationInOpenState(Duration.ofMinutes(1));
+        var props = new CircuitBreakerProperties();
+        props.getCircuitBreakers().put("orderlines", breaker);
+        retriever = retriever(props);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        backend.shutdown();
+    }
+
+    // Without a fallback the breaker passes errors on as the cause of a NoFallbackAvailableException
+    @Test
+    void slow_calls_open_the_breaker() {
+        for (int i = 0; i < 4; i++) {
+            assertEquals("ol" + i, retriever.retrieve("ol" + i).block(Duration.ofSeconds(5)).getId());
+        }
+
+        StepVerifier.create(retriever.retrieve("ol4"))
+                .expectErrorSatisfies(t -> assertInstanceOf(CallNotPermittedException.class, t.getCause()))
+                .verify(Duration.ofMillis(100));
+
+        assertEquals(4, backend.getRequestCount());
+        assertEquals(1, meterRegistry.get("demo.circuitbreaker.transitions")
+                .tags("name", "orderlines", "from", "CLOSED", "to", "OPEN").counter().count());
+        assertEquals(1, meterRegistry.get("demo.circuitbreaker.short_circuited").tag("name", "orderlines").counter().count());
+    }
+
+    @Test
+    void the_defaults_leave_a_slow_but_healthy_backend_alone() {
+        var defaults = retriever(new CircuitBreakerProperties());
+
+        var answered = Flux.range(0, 25)
+                .flatMap(i -> defaults.retrieve("slow-" + i), 25)
+                .count()
+                .block(Duration.ofSeconds(10));
+        assertEquals(25, answered);
+        assertEquals("slow-25", defaults.retrieve("slow-25").block(Duration.ofSeconds(5)).getId());
+
+        assertTrue(meterRegistry.find("demo.circuitbreaker.transitions").counters().isEmpty());
+    }
+
+    @Test
+    void each_breaker_has_its_own_time_limit() {
+        StepVerifier.create(retriever.retrieve("very-slow"))
+                .expectErrorSatisfies(t -> assertInstanceOf(TimeoutException.class, t.getCause()))
+                .verify(Duration.ofMillis(1500));
+    }
+
+    private GOrderLineRetriever retriever(CircuitBreakerProperties props) {
+        var factory = new ReactiveResilience4JCircuitBreakerFactory();
+        CircuitBreakerConfiguration.configure(factory, props, meterRegistry);
+        var retriever = new GOrderLineRetriever(WebClient.create(backend.url("/").toString()), TestUtils.noRetryBudget(),
+                TestUtils.noLastKnownGood(), TestUtils.noBulkheads(), factory);
+        retriever.setup();
+        return retriever;
+    }
+}
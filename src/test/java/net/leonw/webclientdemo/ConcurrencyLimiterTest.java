@@ -0,0 +1,57 @@
+package net.leonw.webclientdemo;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ConcurrencyLimiterTest {
+    private final ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 1, 1, new SimpleMeterRegistry());
+
+    @Test
+    void waits_for_a_permit_and_rejects_when_the_queue_is_full() {
+        Sinks.One<String> first = Sinks.one();
+
+        var running = limiter.limit(first.asMono()).subscribe();
+        var queued = limiter.limit(Mono.just("second")).toFuture();
+        assertEquals(1, limiter.getInFlight());
+        assertEquals(1, limiter.getQueued());
+
+        StepVerifier.create(limiter.limit(Mono.just("third")))
+                .expectError(ConcurrencyLimitExceededException.class)
+                .verify(Duration.ofSeconds(1));
+
+        first.tryEmitValue("first");
+        assertEquals("second", queued.join());
+        assertEquals(0, limiter.getInFlight());
+        assertEquals(0, limiter.getQueued());
+        running.dispose();
+    }
+
+    @Test
+    void cancelling_gives_the_permit_back() {
+        var running = limiter.limit(Mono.never()).subscribe();
+        var queued = limiter.limit(Mono.never()).subscribe();
+
+        queued.dispose();
+        assertEquals(0, limiter.getQueued());
+        running.dispose();
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    void raising_the_limit_lets_waiting_calls_go() {
+        var running = limiter.limit(Mono.never()).subscribe();
+        var queued = limiter.limit(Mono.just("queued")).toFuture();
+
+        limiter.setLimit(2);
+        assertEquals("queued", queued.join());
+        assertEquals(1, limiter.getInFlight());
+        running.dispose();
+    }
+}
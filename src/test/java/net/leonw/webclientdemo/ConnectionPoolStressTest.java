@@ -0,0 +1,96 @@
+package net.leonw.webclientdemo;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.netty.internal.shaded.reactor.pool.PoolAcquirePendingLimitException;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// A pool of 2 connections with room for 5 waiting requests, and a burst of 20 slow requests.
+// 7 get through, the other 13 fail right away instead of piling up; the pending gauge shows the pool is saturated;
+// and once the burst is over the pool works as if nothing happened.
+class ConnectionPoolStressTest {
+    private static final String POOL = "stress-test";
+    private static final String GAUGES = "reactor.netty.connection.provider.";
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private SlowStubBackend backend;
+    private ConnectionPools connectionPools;
+    private WebClient webClient;
+
+    @BeforeEach
+    void initialize() {
+        // Reactor netty registers its pool gauges in the global registry
+        Metrics.addRegistry(meterRegistry);
+        backend = new SlowStubBackend(Duration.ofMillis(500));
+
+        var pool = new ConnectionPoolProperties.Pool();
+        pool.setMaxConnections(2);
+        pool.setPendingAcquireMaxCount(5);
+        var props = new ConnectionPoolProperties();
+        props.getPools().put(POOL, pool);
+        connectionPools = new ConnectionPools(props, meterRegistry);
+        webClient = connectionPools.webClient(WebClient.builder(), POOL, backend.baseUrl(), false);
+    }
+
+    @AfterEach
+    void tearDown() {
+        connectionPools.dispose();
+        backend.close();
+        Metrics.removeRegistry(meterRegistry);
+    }
+
+    @Test
+    void a_burst_saturates_the_pool_and_the_pool_recovers() {
+        var burst = Flux.range(0, 20)
+                .flatMap(i -> retrieve("p" + i).map(p -> "ok").onErrorResume(t -> Mono.just(rootCause(t).getClass().getSimpleName())), 20)
+                .collectList()
+                .toFuture();
+
+        TestUtils.eventually(() -> gauge("pending") == 5);
+        // Active follows a bit later: a connection counts as active once it is connected
+        TestUtils.eventually(() -> gauge("active") == 2);
+        assertEquals(2, gauge("total"));
+
+        List<String> outcomes = burst.join();
+        assertEquals(7, outcomes.stream().filter("ok"::equals).count());
+        assertEquals(13, outcomes.stream().filter(PoolAcquirePendingLimitException.class.getSimpleName()::equals).count());
+        // The 5 that waited had to wait for a whole backend call
+        assertTrue(meterRegistry.timer("demo.http.client.pool.acquire", "pool", POOL).max(TimeUnit.MILLISECONDS) >= 400);
+
+        // Recovered
+        assertEquals(List.of("p-a", "p-b"), Flux.just("p-a", "p-b").flatMap(this::retrieve).map(Product::getId).sort().collectList().block(Duration.ofSeconds(5)));
+        assertEquals(0, gauge("pending"));
+        TestUtils.eventually(() -> gauge("active") == 0);
+    }
+
+    private Mono<Product> retrieve(String id) {
+        return webClient.get().uri("/products/{id}", id).retrieve().bodyToMono(Product.class);
+    }
+
+    private double gauge(String kind) {
+        // There is a set of gauges per remote address; we only have 1.
+        return meterRegistry.find(GAUGES + kind + ".connections").tag("name", POOL).gauges().stream()
+                .mapToDouble(Gauge::value)
+                .sum();
+    }
+
+    private static Throwable rootCause(Throwable t) {
+        while (t.getCause() != null && t.getCause() != t) {
+            t = t.getCause();
+        }
+        return t;
+    }
+}
@@ -0,0 +1,123 @@
+package net.leonw.webclientdemo;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.Exceptions;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+import reactor.util.retry.Retry;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// The retrievers on the pooled WebClient, with a deadline in the context like the controllers put there.
+class DeadlinePropagationTest {
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private MockWebServer mockBackEnd;
+    private ConnectionPools connectionPools;
+    private OrderLineRetriever retriever;
+    private volatile MockResponse response;
+
+    @BeforeEach
+    void initialize() throws IOException {
+        Metrics.addRegistry(meterRegistry); // The deadline metrics are in the global registry
+        mockBackEnd = new MockWebServer();
+        mockBackEnd.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                return response;
+            }
+        });
+        mockBackEnd.start();
+        connectionPools = new ConnectionPools(new ConnectionPoolProperties(), meterRegistry);
+        var webClient = connectionPools.webClient(WebClient.builder(), "deadline-test", "http://localhost:" + mockBackEnd.getPort(), false);
+        retriever = new OrderLineRetriever(webClient, TestUtils.noCoalescing(), TestUtils.noLimits(), TestUtils.noHedging(), TestUtils.noRetryBudget(), TestUtils.noBulkheads(), new BatchingProperties(), meterRegistry);
+        retriever.setup(); // Normally Spring would do this.
+
+        // The first call on a fresh JVM and pool is slow enough to break the timing of the tests
+        response = new MockResponse().setResponseCode(204);
+        webClient.get().uri("/warm-up").retrieve().toBodilessEntity().block(Duration.ofSeconds(5));
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        connectionPools.dispose();
+        mockBackEnd.shutdown();
+        Metrics.removeRegistry(meterRegistry);
+    }
+
+    @Test
+    void without_a_deadline_all_retries_are_done() {
+        response = new MockResponse().setResponseCode(500);
+
+        StepVerifier.create(retriever.retrieve("ol1"))
+                .expectErrorMatches(Exceptions::isRetryExhausted)
+                .verify(Duration.ofSeconds(5));
+        assertEquals(4, backendCalls());
+    }
+
+    @Test
+    void retries_stop_when_there_is_no_time_for_another_attempt() {
+        var attempts = new AtomicInteger();
+        var failing = Mono.defer(() -> {
+            attempts.incrementAndGet();
+            return Mono.error(new IllegalStateException("backend down"));
+        });
+
+        // Attempt at 0 ms, retry after 100 ms, and the next retry would have to wait 200 ms more.
+        StepVerifier.create(failing.retryWhen(Deadline.retry(Retry.backoff(3, Duration.ofMillis(100)).jitter(0)))
+                        .contextWrite(Deadline.in(Duration.ofMillis(250))))
+                .expectErrorSatisfies(t -> {
+                    assertTrue(t instanceof DeadlineExceededException);
+                    assertEquals("backend down", t.getCause().getMessage());
+                })
+                .verify(Duration.ofSeconds(5));
+        assertEquals(2, attempts.get());
+        assertEquals(1, expired("retry"));
+    }
+
+    @Test
+    void a_call_gets_the_remaining_time_as_timeout() {
+        response = new MockResponse().setResponseCode(200).setHeadersDelay(2, TimeUnit.SECONDS);
+
+        long start = System.nanoTime();
+        StepVerifier.create(retriever.retrieve("ol1").contextWrite(Deadline.in(Duration.ofMillis(200))))
+                .expectError(DeadlineExceededException.class)
+                .verify(Duration.ofSeconds(5));
+        assertTrue(Duration.ofNanos(System.nanoTime() - start).toMillis() < 1000);
+        assertEquals(1, backendCalls());
+        assertEquals(1, expired("during_call"));
+    }
+
+    @Test
+    void nothing_is_sent_after_the_deadline() {
+        response = new MockResponse().setResponseCode(200);
+
+        StepVerifier.create(retriever.retrieve("ol1").contextWrite(Deadline.in(Duration.ZERO)))
+                .expectError(DeadlineExceededException.class)
+                .verify(Duration.ofSeconds(5));
+        assertEquals(0, backendCalls());
+        assertEquals(1, expired("before_call"));
+    }
+
+    private int backendCalls() {
+        return mockBackEnd.getRequestCount() - 1; // Not the warm-up
+    }
+
+    private double expired(String stage) {
+        return meterRegistry.counter("demo.deadline.expired", "stage", stage).count();
+    }
+}
@@ -0,0 +1,149 @@
+package net.leonw.webclientdemo;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.BeanUtils;
+import org.springframework.core.ResolvableType;
+import org.springframework.core.codec.DecodingException;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.util.MimeType;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.ExchangeStrategies;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DomainJsonDecoderTest {
+    private final DomainJsonDecoder decoder = new DomainJsonDecoder(new ObjectMapper());
+
+    @Test
+    void a_response_in_several_chunks_is_one_value() {
+        var chunks = Flux.just(buffer("{\"id\":\"o1\",\"orderLi"), buffer("neIds\":[\"o1-1\",\"o1-2\"]}"));
+
+        StepVerifier.create(decoder.decodeToMono(chunks, ResolvableType.forClass(Order.class), MediaType.APPLICATION_JSON, Map.of()))
+                .expectNext(new Order("o1", List.of("o1-1", "o1-2")))
+                .verifyComplete();
+    }
+
+    @Test
+    void a_bulk_response_is_a_flux_of_its_elements() {
+        var chunks = Flux.just(buffer("[{\"id\":\"ol1\",\"productId\":\"p1\"},{\"id\":\"ol2\","), buffer("\"productId\":\"p2\"}]"));
+
+        StepVerifier.create(decoder.decode(chunks, ResolvableType.forClass(OrderLine.class), MediaType.APPLICATION_JSON, Map.of()))
+                .expectNext(new OrderLine("ol1", "p1"), new OrderLine("ol2", "p2"))
+                .verifyComplete();
+    }
+
+    @Test
+    void invalid_json_is_a_decoding_exception() {
+        StepVerifier.create(decoder.decodeToMono(Flux.just(buffer("{\"id\":")), ResolvableType.forClass(Product.class), MediaType.APPLICATION_JSON, Map.of()))
+                .expectError(DecodingException.class)
+                .verify(Duration.ofSeconds(1));
+    }
+
+    @Test
+    void only_our_own_classes() {
+        assertTrue(decoder.canDecode(ResolvableType.forClass(Product.class), MediaType.APPLICATION_JSON));
+        assertTrue(decoder.canDecode(ResolvableType.forClass(Product.class), MediaType.parseMediaType("application/problem+json")));
+        assertFalse(decoder.canDecode(ResolvableType.forClass(Map.class), MediaType.APPLICATION_JSON));
+        assertFalse(decoder.canDecode(ResolvableType.forClass(Product.class), MediaType.TEXT_PLAIN));
+    }
+
+    @Test
+    void a_webclient_uses_it_before_the_generic_jackson_decoder() {
+        var decoded = new AtomicInteger();
+        var counting = new DomainJsonDecoder(new ObjectMapper()) {
+            @Override
+            public Object decode(DataBuffer buffer, ResolvableType targetType, MimeType mimeType, Map<String, Object> hints) {
+                decoded.incrementAndGet();
+                return super.decode(buffer, targetType, mimeType, hints);
+            }
+        };
+        // A response created in a test has its own codecs; from a real connector it gets those of the WebClient
+        var strategies = ExchangeStrategies.builder()
+                .codecs(configurer -> configurer.customCodecs().registerWithDefaultConfig(counting))
+                .build();
+        var webClient = WebClient.builder()
+                .exchangeStrategies(strategies)
+                .exchangeFunction(request -> Mono.just(ClientResponse.create(HttpStatus.OK, strategies)
+                        .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                        .body("{\"id\":\"p1\",\"data\":\"data\"}")
+                        .build()))
+                .build();
+
+        assertEquals(new Product("p1", "data"), webClient.get().uri("/products/p1").retrieve().bodyToMono(Product.class).block());
+        assertEquals("p1", webClient.get().uri("/products/p1").retrieve().bodyToMono(Map.class).block().get("id"));
+        assertEquals(1, decoded.get());
+    }
+
+    @Test
+    void a_raw_product_is_written_as_the_backend_sent_it() throws Exception {
+        var raw = new DomainJsonDecoder(new ObjectMapper(), true);
+        var json = "{ \"id\": \"p1\", \"data\": \"d\u00e9ta\", \"extra\": [1, {\"id\": \"nested\"}] }";
+
+        var product = (Product) raw.decodeToMono(Flux.just(buffer(json.substring(0, 10)), buffer(json.substring(10))),
+                ResolvableType.forClass(Product.class), MediaType.APPLICATION_JSON, Map.of()).block();
+
+        assertEquals(new Product("p1", null, new RawJson(json.getBytes(StandardCharsets.UTF_8))), product);
+        assertNull(product.getData());
+        assertEquals("{\"orderLine\":{\"id\":\"ol1\",\"productId\":\"p1\"},\"product\":" + json + "}",
+                new String(new ObjectMapper().writeValueAsBytes(new EnrichedOrderLine(new OrderLine("ol1", "p1"), product)), StandardCharsets.UTF_8));
+        assertEquals("{\"orderLine\":null,\"product\":" + json + "}", new ObjectMapper().writeValueAsString(new EnrichedOrderLine(null, product)));
+    }
+
+    @Test
+    void raw_products_in_a_bulk_response_are_split() {
+        var raw = new DomainJsonDecoder(new ObjectMapper(), true);
+
+        var products = raw.decode(Flux.just(buffer("[{\"id\":\"p1\",\"data\":\"a\"},\n {\"data\":\"b\",\"id\":\"p2\"}]")),
+                ResolvableType.forClass(Product.class), MediaType.APPLICATION_JSON, Map.of()).collectList().block();
+
+        assertEquals(List.of(rawProduct("p1", "{\"id\":\"p1\",\"data\":\"a\"}"), rawProduct("p2", "{\"data\":\"b\",\"id\":\"p2\"}")), products);
+    }
+
+    @Test
+    void invalid_raw_json_is_a_decoding_exception() {
+        var raw = new DomainJsonDecoder(new ObjectMapper(), true);
+
+        StepVerifier.create(raw.decodeToMono(Flux.just(buffer("{\"id\":\"p1\",")), ResolvableType.forClass(Product.class), MediaType.APPLICATION_JSON, Map.of()))
+                .expectError(DecodingException.class)
+                .verify(Duration.ofSeconds(1));
+    }
+
+    @Test
+    void a_product_can_be_copied_and_changed() throws Exception {
+        var product = rawProduct("p1", "{\"id\":\"p1\",\"data\":\"a\"}");
+        var copy = new Product();
+        BeanUtils.copyProperties(product, copy);
+        assertEquals(product, copy);
+
+        copy.setRaw(null);
+        copy.setData("b");
+
+        assertEquals("{\"id\":\"p1\",\"data\":\"b\"}", new ObjectMapper().writeValueAsString(copy));
+    }
+
+    private static Product rawProduct(String id, String json) {
+        return new Product(id, null, new RawJson(json.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static DataBuffer buffer(String json) {
+        return DefaultDataBufferFactory.sharedInstance.wrap(json.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,62 @@
+package net.leonw.webclientdemo;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+// What a whole enriched order costs us in CPU and garbage, without any backend latency (ZeroLatencyBackend):
+// the blocking F and G controllers, from order id to EnrichedOrder, for orders of 1 to 1000 lines.
+//
+//     mvn -P jmh test -Djmh.args="EnrichmentPipelineBenchmark -prof gc"
+//
+// ops/s is enriched orders per second on 1 thread; gc.alloc.rate.norm is the bytes allocated per enriched order.
+// Divide both by the number of lines to compare the sizes.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EnrichmentPipelineBenchmark {
+    @Param({"1", "10", "100", "1000"})
+    public int lines;
+
+    private ConnectionPools connectionPools;
+    private FMyPreferredSetupController fController;
+    private GMyPreferredSetupWithCircuitBreakerController gController;
+    private String orderId;
+
+    @Setup
+    public void setup() {
+        // Measure the pipeline, not the console: the services log every enriched order at INFO
+        ((Logger) LoggerFactory.getLogger("net.leonw.webclientdemo")).setLevel(Level.WARN);
+
+        var meterRegistry = new SimpleMeterRegistry();
+        var backend = new ZeroLatencyBackend(lines);
+        connectionPools = new ConnectionPools(new ConnectionPoolProperties(), meterRegistry);
+        fController = new FMyPreferredSetupController(ZeroLatencyBackend.fService(connectionPools, backend, meterRegistry),
+                new FMyPreferredSetupControllerProperties());
+        gController = new GMyPreferredSetupWithCircuitBreakerController(ZeroLatencyBackend.gService(connectionPools, backend, meterRegistry),
+                new GMyPreferredSetupControllerWithCircuitBreakerProperties());
+        orderId = ZeroLatencyBackend.orderId(lines);
+    }
+
+    @TearDown
+    public void tearDown() {
+        connectionPools.dispose();
+    }
+
+    @Benchmark
+    public EnrichedOrder f() {
+        return fController.getEnrichedOrderList(orderId);
+    }
+
+    @Benchmark
+    public EnrichedOrder g() {
+        return gController.getEnrichedOrderList(orderId);
+    }
+}
@@ -0,0 +1,100 @@
+package net.leonw.webclientdemo;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.reactive.function.client.WebClient;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// The whole F flow for an order with 200 lines, against a backend that does (or does not) have bulk calls.
+class FBatchingIntegrationTest {
+    private static final List<String> ORDER_LINE_IDS = IntStream.range(0, 200).mapToObj(i -> "ol" + i).collect(Collectors.toList());
+
+    private MockWebServer mockBackEnd;
+    private WebClient webClient;
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @BeforeEach
+    void initialize() throws IOException {
+        mockBackEnd = new MockWebServer();
+        mockBackEnd.start();
+        webClient = WebClient.builder().baseUrl(String.format("http://localhost:%s", mockBackEnd.getPort())).build();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        mockBackEnd.shutdown();
+    }
+
+    @Test
+    void order_lines_and_products_are_retrieved_in_batches() {
+        mockBackEnd.setDispatcher(new BulkCapableBackendDispatcher(true, Set.of()));
+
+        var enrichedOrder = enrich(batching());
+
+        assertEquals(200, enrichedOrder.getOrderLines().size());
+        enrichedOrder.getOrderLines().forEach(line -> assertEquals(line.getOrderLine().getProductId(), line.getProduct().getId()));
+        // At least 4 (200 / 50) batches for the order lines and 4 for the products. The order is not retrieved.
+        // Batches can be smaller than max when the window closes, but 400 calls would mean no batching at all.
+        var requests = mockBackEnd.getRequestCount();
+        if (requests < 8 || requests > 50) {
+            throw new AssertionError("Expected a handful of bulk calls, but there were " + requests + " calls");
+        }
+    }
+
+    @Test
+    void without_bulk_calls_it_falls_back_to_single_calls() {
+        mockBackEnd.setDispatcher(new BulkCapableBackendDispatcher(false, Set.of()));
+
+        var enrichedOrder = enrich(batching());
+
+        assertEquals(200, enrichedOrder.getOrderLines().size());
+        enrichedOrder.getOrderLines().forEach(line -> assertEquals(line.getOrderLine().getProductId(), line.getProduct().getId()));
+    }
+
+    @Test
+    void products_missing_from_a_bulk_response_become_the_unknown_product() {
+        mockBackEnd.setDispatcher(new BulkCapableBackendDispatcher(true, Set.of("p-ol7")));
+
+        var enrichedOrder = enrich(batching());
+
+        var unknown = enrichedOrder.getOrderLines().stream()
+                .filter(line -> line.getProduct().equals(ProductRetriever.UNKNOWN_PRODUCT))
+                .map(line -> line.getOrderLine().getId())
+                .collect(Collectors.toList());
+        assertEquals(List.of("ol7"), unknown);
+    }
+
+    private EnrichedOrder enrich(BatchingProperties batching) {
+        var orderRetriever = new OrderRetriever(webClient, TestUtils.noCoalescing(), TestUtils.noRetryBudget(), TestUtils.noBulkheads()) {
+            @Override
+            public reactor.core.publisher.Mono<Order> retrieve(String orderId) {
+                return reactor.core.publisher.Mono.just(new Order(orderId, ORDER_LINE_IDS));
+            }
+        };
+        var orderLineRetriever = new OrderLineRetriever(webClient, TestUtils.noCoalescing(), TestUtils.noLimits(), TestUtils.noHedging(), TestUtils.noRetryBudget(), TestUtils.noBulkheads(), batching, meterRegistry);
+        orderLineRetriever.setup();
+        var productRetriever = new ProductRetriever(webClient, TestUtils.noCoalescing(), TestUtils.noLimits(), TestUtils.noHedging(), TestUtils.noRetryBudget(), TestUtils.noBulkheads(), TestUtils.noProductCache(), TestUtils.noProductStore(), batching, meterRegistry);
+        productRetriever.setup();
+        var props = new FMyPreferredSetupControllerProperties();
+        var controller = new FMyPreferredSetupController(new FEnrichedOrderService(orderRetriever, orderLineRetriever, productRetriever), props);
+        return controller.getEnrichedOrderList("o1");
+    }
+
+    private BatchingProperties batching() {
+        var props = new BatchingProperties();
+        props.setEnabled(true);
+        props.setWindow(Duration.ofMillis(10));
+        return props;
+    }
+}
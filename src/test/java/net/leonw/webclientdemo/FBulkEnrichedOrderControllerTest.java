@@ -0,0 +1,103 @@
+package net.leonw.webclientdemo;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import reactor.core.Exceptions;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class FBulkEnrichedOrderControllerTest {
+    @Mock
+    private OrderRetriever orderRetriever;
+    @Mock
+    private OrderLineRetriever orderLineRetriever;
+    @Mock
+    private ProductRetriever productRetriever;
+
+    private FBulkEnrichedOrderController controller;
+
+    @BeforeEach
+    void setup() {
+        controller = new FBulkEnrichedOrderController(orderRetriever, orderLineRetriever, productRetriever, new FMyPreferredSetupControllerProperties(), new SimpleMeterRegistry());
+        controller.setup(); // Normally Spring would do this.
+    }
+
+    @Test
+    void shared_order_lines_and_products_are_retrieved_once() {
+        // a and b share order line 1; all order lines share product p
+        when(orderRetriever.retrieve("a")).thenReturn(Mono.just(new Order("a", List.of("1", "2"))));
+        when(orderRetriever.retrieve("b")).thenReturn(Mono.just(new Order("b", List.of("1", "3"))));
+        when(orderLineRetriever.retrieve("1")).thenReturn(Mono.just(new OrderLine("1", "p")));
+        when(orderLineRetriever.retrieve("2")).thenReturn(Mono.just(new OrderLine("2", "p")));
+        when(orderLineRetriever.retrieve("3")).thenReturn(Mono.just(new OrderLine("3", "p")));
+        when(productRetriever.retrieve("p")).thenReturn(Mono.just(new Product("p", "data")));
+
+        var results = byId(controller.getEnrichedOrders(ids("a", "b")).collectList().block(Duration.ofSeconds(5)));
+
+        assertEquals(2, results.get("a").getEnrichedOrder().getOrderLines().size());
+        assertEquals(2, results.get("b").getEnrichedOrder().getOrderLines().size());
+        verify(orderLineRetriever, times(1)).retrieve("1");
+        verify(productRetriever, times(1)).retrieve("p");
+    }
+
+    @Test
+    void a_failed_order_is_an_error_entry() {
+        when(orderRetriever.retrieve("a")).thenReturn(Mono.just(new Order("a", List.of("1"))));
+        when(orderRetriever.retrieve("b")).thenReturn(Mono.error(Exceptions.retryExhausted("Retries exhausted: 3/3", new RuntimeException("backend down"))));
+        when(orderLineRetriever.retrieve("1")).thenReturn(Mono.just(new OrderLine("1", "p")));
+        when(productRetriever.retrieve("p")).thenReturn(Mono.just(new Product("p", "data")));
+
+        var results = byId(controller.getEnrichedOrders(ids("a", "b")).collectList().block(Duration.ofSeconds(5)));
+
+        assertNotNull(results.get("a").getEnrichedOrder());
+        assertNull(results.get("a").getError());
+        assertNull(results.get("b").getEnrichedOrder());
+        assertEquals("backend down", results.get("b").getError());
+    }
+
+    @Test
+    void a_failed_shared_product_is_retrieved_again_for_the_next_order() {
+        // b gets its order line later, after the first call for p has failed for a
+        var calls = new AtomicInteger();
+        when(orderRetriever.retrieve("a")).thenReturn(Mono.just(new Order("a", List.of("1"))));
+        when(orderRetriever.retrieve("b")).thenReturn(Mono.just(new Order("b", List.of("2"))));
+        when(orderLineRetriever.retrieve("1")).thenReturn(Mono.just(new OrderLine("1", "p")));
+        when(orderLineRetriever.retrieve("2")).thenReturn(Mono.just(new OrderLine("2", "p")).delayElement(Duration.ofMillis(200)));
+        when(productRetriever.retrieve("p")).thenReturn(Mono.defer(() -> calls.incrementAndGet() == 1
+                ? Mono.error(new RuntimeException("backend hiccup"))
+                : Mono.just(new Product("p", "data"))));
+
+        var results = byId(controller.getEnrichedOrders(ids("a", "b")).collectList().block(Duration.ofSeconds(5)));
+
+        assertEquals("backend hiccup", results.get("a").getError());
+        assertNotNull(results.get("b").getEnrichedOrder());
+        assertEquals(2, calls.get());
+    }
+
+    private static LinkedHashSet<String> ids(String... ids) {
+        return new LinkedHashSet<>(List.of(ids));
+    }
+
+    private static Map<String, BulkEnrichedOrderResult> byId(List<BulkEnrichedOrderResult> results) {
+        return results.stream().collect(Collectors.toMap(BulkEnrichedOrderResult::getId, Function.identity()));
+    }
+}
@@ -32,7 +32,7 @@ public class FMyPreferredSetupControllerTest {
 
     @BeforeEach
     void setup() {
-        controller = new FMyPreferredSetupController(orderRetriever, orderLineRetriever, productRetriever, new FMyPreferredSetupControllerProperties());
+        controller = new FMyPreferredSetupController(new FEnrichedOrderService(orderRetriever, orderLineRetriever, productRetriever), new FMyPreferredSetupControllerProperties());
     }
 
     @Test
@@ -0,0 +1,73 @@
+package net.leonw.webclientdemo;
+
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// The whole application with only 4 Tomcat threads, against a backend where every call takes 300 ms.
+// An enriched order is 3 calls after each other, so about 1 second.
+// Blocking, 40 requests on 4 threads would be 10 rounds of 1 second. Non-blocking they all run at the same time.
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {
+        "demo.web.non-blocking=true",
+        "server.tomcat.threads.max=4",
+        "demo.product-cache.enabled=false"
+})
+class FNonBlockingLoadTest {
+    private static final int REQUESTS = 40;
+    private static final int TOMCAT_THREADS = 4;
+    private static final Duration BACKEND_LATENCY = Duration.ofMillis(300);
+
+    private static MockWebServer mockBackEnd;
+
+    @LocalServerPort
+    private int port;
+
+    @DynamicPropertySource
+    static void backend(DynamicPropertyRegistry registry) throws IOException {
+        mockBackEnd = new MockWebServer();
+        mockBackEnd.setDispatcher(new BulkCapableBackendDispatcher(false, Set.of(), BACKEND_LATENCY));
+        mockBackEnd.start();
+        registry.add("demo.backend.base-url", () -> String.format("http://localhost:%s", mockBackEnd.getPort()));
+    }
+
+    @AfterAll
+    static void tearDown() throws IOException {
+        mockBackEnd.shutdown();
+    }
+
+    @Test
+    void concurrency_is_not_bounded_by_the_tomcat_thread_pool() {
+        var client = WebClient.builder().baseUrl("http://localhost:" + port).build();
+        // Warm up, so the first request does not pay for class loading and connection setup
+        client.get().uri("/f-ultimate-example-perhaps/enriched-orders/warmup").retrieve().bodyToMono(EnrichedOrder.class).block(Duration.ofSeconds(10));
+
+        long start = System.nanoTime();
+        List<EnrichedOrder> orders = Flux.range(0, REQUESTS)
+                .flatMap(i -> client.get().uri("/f-ultimate-example-perhaps/enriched-orders/{id}", "o" + i).retrieve().bodyToMono(EnrichedOrder.class))
+                .collectList()
+                .block(Duration.ofSeconds(30));
+        var elapsed = Duration.ofNanos(System.nanoTime() - start);
+
+        assertEquals(REQUESTS, orders.size());
+        orders.forEach(order -> assertEquals(2, order.getOrderLines().size()));
+
+        var oneRequest = BACKEND_LATENCY.multipliedBy(3);
+        var whenBoundedByThreads = oneRequest.multipliedBy(REQUESTS / TOMCAT_THREADS);
+        assertTrue(elapsed.compareTo(whenBoundedByThreads.dividedBy(2)) < 0,
+                "took " + elapsed.toMillis() + " ms, with blocking on " + TOMCAT_THREADS + " threads this would be about " + whenBoundedByThreads.toMillis() + " ms");
+    }
+}
@@ -57,7 +57,7 @@ public class FOrderRetrieverIntegrationTest {
         var baseUrl = String.format("http://localhost:%s",
                 mockBackEnd.getPort());
         var webClient = WebClient.builder().baseUrl(baseUrl).build();
-        retriever = new OrderRetriever(webClient);
+        retriever = new OrderRetriever(webClient, TestUtils.noCoalescing(), TestUtils.noRetryBudget(), TestUtils.noBulkheads());
     }
 
     @AfterAll
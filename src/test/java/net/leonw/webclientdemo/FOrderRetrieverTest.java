@@ -38,7 +38,7 @@ public class FOrderRetrieverTest {
         var webClient = WebClient.builder()
                 .exchangeFunction(exchangeFunction)
                 .build();
-        orderRetriever = new OrderRetriever(webClient);
+        orderRetriever = new OrderRetriever(webClient, TestUtils.noCoalescing(), TestUtils.noRetryBudget(), TestUtils.noBulkheads());
     }
 
     @Test
@@ -0,0 +1,96 @@
+package net.leonw.webclientdemo;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.web.reactive.function.client.ClientRequest;
+import org.springframework.web.reactive.function.client.ExchangeFunction;
+import org.springframework.web.reactive.function.client.WebClient;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class FProductRetrieverCacheTest {
+
+    @Mock
+    private ExchangeFunction exchangeFunction;
+
+    private ProductRetriever productRetriever;
+    private SimpleMeterRegistry meterRegistry;
+
+    @BeforeEach
+    void init() {
+        var webClient = WebClient.builder()
+                .exchangeFunction(exchangeFunction)
+                .build();
+        meterRegistry = new SimpleMeterRegistry();
+        productRetriever = new ProductRetriever(webClient, TestUtils.noCoalescing(), TestUtils.noLimits(), TestUtils.noHedging(), TestUtils.noRetryBudget(), TestUtils.noBulkheads(), new ProductCacheProperties(), TestUtils.noProductStore(), new BatchingProperties(), meterRegistry);
+        productRetriever.setup(); // Normally Spring would do this.
+    }
+
+    @Test
+    void a_product_is_retrieved_only_once() {
+        var expected = new Product("p1", "data");
+        when(exchangeFunction.exchange(any(ClientRequest.class)))
+                .thenReturn(TestUtils.createMockResponse(expected));
+
+        assertEquals(expected, productRetriever.retrieve("p1").block(Duration.ofSeconds(1)));
+        assertEquals(expected, productRetriever.retrieve("p1").block(Duration.ofSeconds(1)));
+
+        verify(exchangeFunction, times(1)).exchange(any(ClientRequest.class));
+        assertEquals(1, meterRegistry.get("cache.gets").tag("cache", "products").tag("result", "hit").functionCounter().count());
+        assertEquals(1, meterRegistry.get("cache.gets").tag("cache", "products").tag("result", "miss").functionCounter().count());
+    }
+
+    @Test
+    void a_caller_that_cancels_does_not_cancel_the_load_for_the_others() {
+        var expected = new Product("p1", "data");
+        when(exchangeFunction.exchange(any(ClientRequest.class)))
+                .thenReturn(TestUtils.createMockResponse(expected).delaySubscription(Duration.ofMillis(200)));
+
+        var impatient = productRetriever.retrieve("p1").subscribe();
+        var patient = productRetriever.retrieve("p1").toFuture();
+        impatient.dispose();
+
+        assertEquals(expected, patient.join());
+        verify(exchangeFunction, times(1)).exchange(any(ClientRequest.class));
+    }
+
+    @Test
+    void an_unknown_product_is_remembered() {
+        when(exchangeFunction.exchange(any(ClientRequest.class)))
+                .thenReturn(TestUtils.createMock404Response());
+
+        assertEquals(ProductRetriever.UNKNOWN_PRODUCT, productRetriever.retrieve("p1").block(Duration.ofSeconds(1)));
+        assertEquals(ProductRetriever.UNKNOWN_PRODUCT, productRetriever.retrieve("p1").block(Duration.ofSeconds(1)));
+
+        verify(exchangeFunction, times(1)).exchange(any(ClientRequest.class));
+        assertEquals(1, meterRegistry.get("cache.gets").tag("cache", "products-negative").tag("result", "hit").functionCounter().count());
+    }
+
+    @Test
+    void an_unknown_product_is_not_cached_without_negative_caching() {
+        var cacheProperties = new ProductCacheProperties();
+        cacheProperties.setNegativeExpireAfterWrite(Duration.ZERO);
+        productRetriever = new ProductRetriever(WebClient.builder().exchangeFunction(exchangeFunction).build(), TestUtils.noCoalescing(), TestUtils.noLimits(), TestUtils.noHedging(), TestUtils.noRetryBudget(), TestUtils.noBulkheads(), cacheProperties, TestUtils.noProductStore(), new BatchingProperties(), new SimpleMeterRegistry());
+        productRetriever.setup();
+        var expected = new Product("p1", "data");
+        when(exchangeFunction.exchange(any(ClientRequest.class)))
+                .thenReturn(TestUtils.createMock404Response())
+                .thenReturn(TestUtils.createMockResponse(expected));
+
+        assertEquals(ProductRetriever.UNKNOWN_PRODUCT, productRetriever.retrieve("p1").block(Duration.ofSeconds(1)));
+        assertEquals(expected, productRetriever.retrieve("p1").block(Duration.ofSeconds(1)));
+
+        verify(exchangeFunction, times(2)).exchange(any(ClientRequest.class));
+    }
+}
@@ -0,0 +1,111 @@
+package net.leonw.webclientdemo;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// Many subscribers for the same product at the same time should result in exactly 1 backend call.
+class FRequestCoalescingIntegrationTest {
+    private static final int SUBSCRIBERS = 50;
+
+    private MockWebServer mockBackEnd;
+    private WebClient webClient;
+    private SimpleMeterRegistry meterRegistry;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @BeforeEach
+    void initialize() throws IOException {
+        mockBackEnd = new MockWebServer();
+        mockBackEnd.start();
+        webClient = WebClient.builder().baseUrl(String.format("http://localhost:%s", mockBackEnd.getPort())).build();
+        meterRegistry = new SimpleMeterRegistry();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        mockBackEnd.shutdown();
+    }
+
+    @Test
+    void concurrent_requests_for_the_same_product_share_one_backend_call() throws JsonProcessingException {
+        var product = new Product("p1", "data");
+        // The delay makes sure all subscribers arrive while the first call is still in flight
+        mockBackEnd.enqueue(new MockResponse()
+                .setHeadersDelay(500, TimeUnit.MILLISECONDS)
+                .setBody(objectMapper.writeValueAsString(product))
+                .addHeader("Content-Type", "application/json"));
+
+        // No product cache, otherwise the cache would do the coalescing for us
+        var retriever = new ProductRetriever(webClient, coalescerFor("products"), TestUtils.noLimits(), TestUtils.noHedging(), TestUtils.noRetryBudget(), TestUtils.noBulkheads(), TestUtils.noProductCache(), TestUtils.noProductStore(), new BatchingProperties(), meterRegistry);
+        retriever.setup(); // Normally Spring would do this.
+
+        List<Product> products = Flux.range(0, SUBSCRIBERS)
+                .parallel(SUBSCRIBERS)
+                .runOn(Schedulers.boundedElastic())
+                .flatMap(i -> retriever.retrieve("p1"))
+                .sequential()
+                .collectList()
+                .block(Duration.ofSeconds(10));
+
+        assertEquals(SUBSCRIBERS, products.size());
+        products.forEach(p -> assertEquals(product, p));
+        assertEquals(1, mockBackEnd.getRequestCount());
+        assertEquals(SUBSCRIBERS - 1, meterRegistry.counter("demo.coalescing.calls", "resource", "products", "outcome", "joined").count());
+    }
+
+    @Test
+    void subscribers_also_share_the_retries() throws JsonProcessingException {
+        var orderLine = new OrderLine("ol1", "p1");
+        mockBackEnd.enqueue(new MockResponse().setHeadersDelay(300, TimeUnit.MILLISECONDS).setResponseCode(500));
+        mockBackEnd.enqueue(new MockResponse()
+                .setBody(objectMapper.writeValueAsString(orderLine))
+                .addHeader("Content-Type", "application/json"));
+
+        var retriever = new OrderLineRetriever(webClient, coalescerFor("orderlines"), TestUtils.noLimits(), TestUtils.noHedging(), TestUtils.noRetryBudget(), TestUtils.noBulkheads(), new BatchingProperties(), meterRegistry);
+        retriever.setup(); // Normally Spring would do this.
+
+        List<OrderLine> orderLines = Flux.range(0, SUBSCRIBERS)
+                .flatMap(i -> retriever.retrieve("ol1"))
+                .collectList()
+                .block(Duration.ofSeconds(10));
+
+        assertEquals(SUBSCRIBERS, orderLines.size());
+        // The failed first attempt and the successful retry. Not 2 per subscriber.
+        assertEquals(2, mockBackEnd.getRequestCount());
+    }
+
+    @Test
+    void a_finished_call_is_forgotten() throws JsonProcessingException {
+        var order = new Order("o1", List.of());
+        mockBackEnd.enqueue(new MockResponse().setBody(objectMapper.writeValueAsString(order)).addHeader("Content-Type", "application/json"));
+        mockBackEnd.enqueue(new MockResponse().setBody(objectMapper.writeValueAsString(order)).addHeader("Content-Type", "application/json"));
+
+        var retriever = new OrderRetriever(webClient, coalescerFor("orders"), TestUtils.noRetryBudget(), TestUtils.noBulkheads());
+
+        assertEquals(order, retriever.retrieve("o1").block(Duration.ofSeconds(5)));
+        assertEquals(order, retriever.retrieve("o1").block(Duration.ofSeconds(5)));
+        assertEquals(2, mockBackEnd.getRequestCount());
+    }
+
+    private RequestCoalescer coalescerFor(String resourceType) {
+        var props = new RequestCoalescingProperties();
+        props.setEnabledFor(Set.of(resourceType));
+        return new RequestCoalescer(props, meterRegistry);
+    }
+}
@@ -0,0 +1,92 @@
+package net.leonw.webclientdemo;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.util.List;
+
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class FStreamingControllerTest {
+    @Mock
+    private OrderRetriever orderRetriever;
+    @Mock
+    private OrderLineRetriever orderLineRetriever;
+    @Mock
+    private ProductRetriever productRetriever;
+
+    private FStreamingController controller;
+
+    @BeforeEach
+    void setup() {
+        controller = new FStreamingController(new FEnrichedOrderService(orderRetriever, orderLineRetriever, productRetriever), new FMyPreferredSetupControllerProperties());
+    }
+
+    @Test
+    void the_order_comes_first_and_then_the_lines_as_soon_as_they_are_done() {
+        var order = new Order("a", List.of("a1", "a2"));
+        var slowLine = new OrderLine("a1", "p1");
+        var fastLine = new OrderLine("a2", "p2");
+        var slowProduct = new Product("p1", "slow");
+        var fastProduct = new Product("p2", "fast");
+
+        when(orderRetriever.retrieve("a")).thenReturn(Mono.just(order));
+        when(orderLineRetriever.retrieve("a1")).thenReturn(Mono.just(slowLine));
+        when(orderLineRetriever.retrieve("a2")).thenReturn(Mono.just(fastLine));
+        when(productRetriever.retrieve("p1")).thenReturn(Mono.just(slowProduct).delayElement(Duration.ofMillis(300)));
+        when(productRetriever.retrieve("p2")).thenReturn(Mono.just(fastProduct));
+
+        StepVerifier.create(controller.streamEnrichedOrder("a"))
+                .expectNext(order)
+                .expectNext(new EnrichedOrderLine(fastLine, fastProduct))
+                .expectNext(new EnrichedOrderLine(slowLine, slowProduct))
+                .expectComplete()
+                .verify(Duration.ofSeconds(5));
+    }
+
+    @Test
+    void server_sent_events_are_named() {
+        var order = new Order("a", List.of("a1"));
+        var orderLine = new OrderLine("a1", "p1");
+        var product = new Product("p1", "data");
+
+        when(orderRetriever.retrieve("a")).thenReturn(Mono.just(order));
+        when(orderLineRetriever.retrieve("a1")).thenReturn(Mono.just(orderLine));
+        when(productRetriever.retrieve("p1")).thenReturn(Mono.just(product));
+
+        StepVerifier.create(controller.streamEnrichedOrderEvents("a"))
+                .expectNextMatches(event -> "order".equals(event.event()) && order.equals(event.data()))
+                .expectNextMatches(event -> "orderLine".equals(event.event()) && new EnrichedOrderLine(orderLine, product).equals(event.data()))
+                .expectComplete()
+                .verify(Duration.ofSeconds(5));
+    }
+
+    @Test
+    void no_more_order_lines_are_retrieved_than_requested() {
+        var order = new Order("a", List.of("a1", "a2", "a3"));
+        var orderLine = new OrderLine("a1", "p1");
+        var product = new Product("p1", "data");
+
+        when(orderRetriever.retrieve("a")).thenReturn(Mono.just(order));
+        when(orderLineRetriever.retrieve("a1")).thenReturn(Mono.just(orderLine));
+        when(productRetriever.retrieve("p1")).thenReturn(Mono.just(product));
+
+        // A client that only wants 2 items; a2 and a3 are never retrieved (they are not stubbed, so retrieving them would fail the stream).
+        var props = new FMyPreferredSetupControllerProperties();
+        props.setStreamingConcurrency(1);
+        controller = new FStreamingController(new FEnrichedOrderService(orderRetriever, orderLineRetriever, productRetriever), props);
+
+        StepVerifier.create(controller.streamEnrichedOrder("a"), 2)
+                .expectNext(order)
+                .expectNext(new EnrichedOrderLine(orderLine, product))
+                .thenCancel()
+                .verify(Duration.ofSeconds(5));
+    }
+}
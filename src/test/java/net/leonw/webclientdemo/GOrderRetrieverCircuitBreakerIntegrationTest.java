@@ -57,7 +57,7 @@ class GOrderRetrieverCircuitBreakerIntegrationTest {
         mockBackEnd.enqueue(new MockResponse().setHeadersDelay(2000, TimeUnit.MILLISECONDS).setResponseCode(200));
 
         var circuitBreakerFactory = new ReactiveResilience4JCircuitBreakerFactory();
-        var retriever = new GOrderRetriever(webClient, circuitBreakerFactory);
+        var retriever = new GOrderRetriever(webClient, TestUtils.noRetryBudget(), TestUtils.noLastKnownGood(), TestUtils.noBulkheads(), circuitBreakerFactory);
         retriever.setup(); // Normally Spring would do this.
 
         // You MUST block otherwise nothing happens (no subscription).
@@ -92,7 +92,7 @@ class GOrderRetrieverCircuitBreakerIntegrationTest {
         mockBackEnd.enqueue(new MockResponse().setHeadersDelay(200, TimeUnit.MILLISECONDS).setResponseCode(500));
         mockBackEnd.enqueue(new MockResponse().setHeadersDelay(200, TimeUnit.MILLISECONDS).setResponseCode(500));
         var circuitBreakerFactory = new ReactiveResilience4JCircuitBreakerFactory();
-        var retriever = new GOrderRetriever(webClient, circuitBreakerFactory);
+        var retriever = new GOrderRetriever(webClient, TestUtils.noRetryBudget(), TestUtils.noLastKnownGood(), TestUtils.noBulkheads(), circuitBreakerFactory);
         retriever.setup(); // Normally Spring would do this.
 
         try {
@@ -128,7 +128,7 @@ class GOrderRetrieverCircuitBreakerIntegrationTest {
 
         mockBackEnd.enqueue(new MockResponse().setHeadersDelay(5, TimeUnit.MILLISECONDS).setResponseCode(500));
         var circuitBreakerFactory = new ReactiveResilience4JCircuitBreakerFactory();
-        var retriever = new GOrderRetriever(webClient, circuitBreakerFactory);
+        var retriever = new GOrderRetriever(webClient, TestUtils.noRetryBudget(), TestUtils.noLastKnownGood(), TestUtils.noBulkheads(), circuitBreakerFactory);
         retriever.setup(); // Normally Spring would do this.
 
         try {
@@ -176,7 +176,7 @@ class GOrderRetrieverCircuitBreakerIntegrationTest {
         var circuitBreakerFactory = new ReactiveResilience4JCircuitBreakerFactory();
         circuitBreakerFactory.configureDefault(circuitBreakerConfig); // I change the default config otherwise I have to know the ids.
 
-        var retriever = new GOrderRetriever(webClient, circuitBreakerFactory);
+        var retriever = new GOrderRetriever(webClient, TestUtils.noRetryBudget(), TestUtils.noLastKnownGood(), TestUtils.noBulkheads(), circuitBreakerFactory);
         retriever.setup(); // Normally Spring would do this.
 
         try {
@@ -0,0 +1,75 @@
+package net.leonw.webclientdemo;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.netty.http.HttpProtocol;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.Collectors;
+
+// Not a test, a benchmark. Excluded from the normal build; run with
+//   mvn -P benchmark test -Dtest=H2cBenchmarkTest
+// N concurrent product calls (the fan-out of a few big orders) against a stub backend that answers in 20 ms:
+// - http1: a connection per concurrent request (up to max-connections)
+// - h2c: a few connections, every request a stream
+// Each run starts with a cold pool, so connection setup (and the h2c upgrade) is part of the numbers.
+@Slf4j
+@Tag("benchmark")
+class H2cBenchmarkTest {
+    private static final Duration BACKEND_LATENCY = Duration.ofMillis(20);
+
+    @ParameterizedTest(name = "{0}, {1} connections, {2} concurrent requests")
+    @CsvSource({"http1, 1000, 1000", "h2c, 4, 1000", "http1, 1000, 5000", "h2c, 4, 5000", "h2c, 16, 5000"})
+    void fan_out(String protocol, int maxConnections, int concurrency) {
+        boolean h2c = protocol.equals("h2c");
+        try (var backend = new SlowStubBackend(BACKEND_LATENCY, HttpProtocol.H2C, HttpProtocol.HTTP11)) {
+            var pool = new ConnectionPoolProperties.Pool();
+            pool.setH2c(h2c);
+            pool.setMaxConnections(maxConnections);
+            pool.setPendingAcquireMaxCount(-1);
+            var props = new ConnectionPoolProperties();
+            props.getPools().put("benchmark", pool);
+            var connectionPools = new ConnectionPools(props, new SimpleMeterRegistry());
+            var webClient = connectionPools.webClient(WebClient.builder(), "benchmark", backend.baseUrl(), false);
+
+            long start = System.nanoTime();
+            List<Long> latencies = Flux.range(0, concurrency)
+                    .flatMap(i -> timed(webClient, "p" + i), concurrency)
+                    .collectList()
+                    .block(Duration.ofMinutes(5));
+            var elapsed = Duration.ofNanos(System.nanoTime() - start);
+
+            var succeeded = latencies.stream().filter(ms -> ms >= 0).sorted().collect(Collectors.toList());
+            log.warn("{} ({} connections max), {} concurrent: {} ms total, {} req/s, {} failed, p50 {} ms, p99 {} ms, {} connections used, {}",
+                    protocol, maxConnections, concurrency, elapsed.toMillis(),
+                    concurrency * 1000L / Math.max(1, elapsed.toMillis()),
+                    concurrency - succeeded.size(),
+                    percentile(succeeded, 0.50), percentile(succeeded, 0.99),
+                    backend.connectionCount(), backend.protocols());
+            connectionPools.dispose();
+        }
+    }
+
+    // Latency in ms, or -1 for a failed request
+    private Mono<Long> timed(WebClient client, String productId) {
+        return Mono.defer(() -> {
+            long start = System.nanoTime();
+            return client.get().uri("/products/{id}", productId)
+                    .retrieve()
+                    .toBodilessEntity()
+                    .map(response -> (System.nanoTime() - start) / 1_000_000)
+                    .onErrorReturn(-1L);
+        });
+    }
+
+    private static long percentile(List<Long> sorted, double percentile) {
+        return sorted.isEmpty() ? -1 : sorted.get((int) Math.min(sorted.size() - 1, Math.ceil(percentile * sorted.size()) - 1));
+    }
+}
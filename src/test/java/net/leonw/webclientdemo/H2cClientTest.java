@@ -0,0 +1,64 @@
+package net.leonw.webclientdemo;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+import reactor.netty.http.HttpProtocol;
+
+import java.time.Duration;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// demo.downstream.pools.<name>.h2c=true: HTTP/2 if the backend can, HTTP/1.1 if it cannot.
+class H2cClientTest {
+    private static final int REQUESTS = 200;
+
+    private SlowStubBackend backend;
+    private ConnectionPools connectionPools;
+
+    @AfterEach
+    void tearDown() {
+        connectionPools.dispose();
+        backend.close();
+    }
+
+    @Test
+    void concurrent_requests_share_a_few_http2_connections() {
+        backend = new SlowStubBackend(Duration.ofMillis(100), HttpProtocol.H2C, HttpProtocol.HTTP11);
+
+        assertEquals(REQUESTS, fanOut(h2cWebClient()));
+        assertEquals(Set.of("HTTP/2.0"), backend.protocols());
+        assertTrue(backend.connectionCount() <= 4, backend.connectionCount() + " connections");
+    }
+
+    @Test
+    void falls_back_to_http1_when_the_backend_has_no_h2c() {
+        // 4 connections, 1 request at a time each
+        backend = new SlowStubBackend(Duration.ofMillis(20));
+
+        assertEquals(REQUESTS, fanOut(h2cWebClient()));
+        assertEquals(Set.of("HTTP/1.1"), backend.protocols());
+    }
+
+    private WebClient h2cWebClient() {
+        var pool = new ConnectionPoolProperties.Pool();
+        pool.setH2c(true);
+        // Without a low limit a cold burst opens a connection per request, because none has been upgraded yet
+        pool.setMaxConnections(4);
+        var props = new ConnectionPoolProperties();
+        props.getPools().put("h2c-test", pool);
+        connectionPools = new ConnectionPools(props, new SimpleMeterRegistry());
+        return connectionPools.webClient(WebClient.builder(), "h2c-test", backend.baseUrl(), false);
+    }
+
+    private long fanOut(WebClient webClient) {
+        return Flux.range(0, REQUESTS)
+                .flatMap(i -> webClient.get().uri("/products/{id}", "p" + i).retrieve().bodyToMono(Product.class), REQUESTS)
+                .count()
+                .block(Duration.ofSeconds(10));
+    }
+}
@@ -0,0 +1,54 @@
+package net.leonw.webclientdemo;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Mono;
+
+// What WebClientInstrumentation costs per call. Against a backend that answers in 0 ns (an ExchangeFunction
+// returning a canned response), so everything measured is WebClient and the filter; a real call is network
+// and takes 100 to 1000 times longer.
+// Not JMH, so take the numbers with a grain of salt: the difference matters, not the absolute value.
+@Slf4j
+@Tag("benchmark")
+class InstrumentationOverheadBenchmarkTest {
+    private static final int WARM_UP = 200_000;
+    private static final int CALLS = 1_000_000;
+
+    @Test
+    void overhead_per_call() {
+        var bare = WebClient.builder()
+                .exchangeFunction(request -> Mono.just(ClientResponse.create(HttpStatus.OK).build()))
+                .build();
+        var instrumented = bare.mutate()
+                .filter(new WebClientInstrumentation("benchmark", new SimpleMeterRegistry()))
+                .build();
+
+        // Alternating, so JIT and GC hit both the same
+        for (int round = 0; round < 3; round++) {
+            long bareNanos = nanosPerCall(bare);
+            long instrumentedNanos = nanosPerCall(instrumented);
+            log.warn("Round {}: bare {} ns/call, instrumented {} ns/call, overhead {} ns/call",
+                    round, bareNanos, instrumentedNanos, instrumentedNanos - bareNanos);
+        }
+    }
+
+    private static long nanosPerCall(WebClient webClient) {
+        for (int i = 0; i < WARM_UP; i++) {
+            call(webClient, i);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < CALLS; i++) {
+            call(webClient, i);
+        }
+        return (System.nanoTime() - start) / CALLS;
+    }
+
+    private static void call(WebClient webClient, int i) {
+        webClient.get().uri("/products/{id}", i).retrieve().toBodilessEntity().block();
+    }
+}
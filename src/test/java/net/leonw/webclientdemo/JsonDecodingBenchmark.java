@@ -0,0 +1,91 @@
+package net.leonw.webclientdemo;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.module.blackbird.BlackbirdModule;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.core.ResolvableType;
+import org.springframework.core.codec.Decoder;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.MediaType;
+import org.springframework.http.codec.json.Jackson2JsonDecoder;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+// Only the decoding of a response body, as the WebClient does it for bodyToMono and bodyToFlux: the generic
+// Jackson2JsonDecoder against the DomainJsonDecoder, with and without Blackbird, and with raw products.
+// enrichedOrderLine is the round trip of a product: decoded from the backend and written to our client.
+//
+//     mvn -P jmh test -Djmh.args="JsonDecodingBenchmark -prof gc"
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JsonDecodingBenchmark {
+    private static final ResolvableType ORDER = ResolvableType.forClass(Order.class);
+    private static final ResolvableType ORDER_LINE = ResolvableType.forClass(OrderLine.class);
+    private static final ResolvableType PRODUCT = ResolvableType.forClass(Product.class);
+
+    @Param({"jackson", "precompiled", "blackbird", "raw"})
+    public String decoderType;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final OrderLine orderLine = new OrderLine("ol-0", "p-0");
+    private Decoder<Object> decoder;
+    private byte[] order;
+    private byte[] orderLines;
+    private byte[] product;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        decoder = switch (decoderType) {
+            case "jackson" -> (Decoder<Object>) (Decoder<?>) new Jackson2JsonDecoder(new ObjectMapper());
+            case "precompiled" -> new DomainJsonDecoder(new ObjectMapper());
+            case "blackbird" -> new DomainJsonDecoder(new ObjectMapper().registerModule(new BlackbirdModule()));
+            case "raw" -> new DomainJsonDecoder(new ObjectMapper(), true);
+            default -> throw new IllegalArgumentException(decoderType);
+        };
+        order = json("{\"id\":\"o-100\",\"orderLineIds\":[" + IntStream.range(0, 100).mapToObj(i -> "\"ol-" + i + "\"").collect(Collectors.joining(",")) + "]}");
+        orderLines = json("[" + IntStream.range(0, 50).mapToObj(i -> "{\"id\":\"ol-" + i + "\",\"productId\":\"p-" + i + "\"}").collect(Collectors.joining(",")) + "]");
+        product = json("{\"id\":\"p-0\",\"data\":\"product p-0 and some data to make it a bit more realistic\"}");
+    }
+
+    @Benchmark
+    public Object order() {
+        return decoder.decodeToMono(Mono.just(buffer(order)), ORDER, MediaType.APPLICATION_JSON, Map.of()).block();
+    }
+
+    @Benchmark
+    public Object product() {
+        return decoder.decodeToMono(Mono.just(buffer(product)), PRODUCT, MediaType.APPLICATION_JSON, Map.of()).block();
+    }
+
+    @Benchmark
+    public List<Object> orderLines() {
+        return decoder.decode(Mono.just(buffer(orderLines)), ORDER_LINE, MediaType.APPLICATION_JSON, Map.of()).collectList().block();
+    }
+
+    @Benchmark
+    public byte[] enrichedOrderLine() throws JsonProcessingException {
+        var decoded = (Product) decoder.decodeToMono(Mono.just(buffer(product)), PRODUCT, MediaType.APPLICATION_JSON, Map.of()).block();
+        return objectMapper.writeValueAsBytes(new EnrichedOrderLine(orderLine, decoded));
+    }
+
+    private static DataBuffer buffer(byte[] bytes) {
+        return DefaultDataBufferFactory.sharedInstance.wrap(bytes);
+    }
+
+    private static byte[] json(String json) {
+        return json.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,98 @@
+package net.leonw.webclientdemo;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerConfig;
+import io.github.resilience4j.timelimiter.TimeLimiterConfig;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.jupiter.api.Test;
+import org.springframework.cloud.circuitbreaker.resilience4j.ReactiveResilience4JCircuitBreakerFactory;
+import org.springframework.cloud.circuitbreaker.resilience4j.Resilience4JConfigBuilder;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LastKnownGoodTest {
+    private static final Order ORDER = new Order("o1", List.of("ol1"));
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final LastKnownGoods lastKnownGoods = new LastKnownGoods(new LastKnownGoodProperties(), meterRegistry);
+
+    @Test
+    void an_open_breaker_is_answered_with_the_last_copy_marked_stale() {
+        assertNull(enriched(Mono.just(ORDER)).getStaleMillis());
+
+        var answer = enriched(Mono.error(CallNotPermittedException.createCallNotPermittedException(CircuitBreaker.ofDefaults("orders"))));
+
+        assertEquals(ORDER, answer.getOrder());
+        assertNotNull(answer.getStaleMillis());
+        assertEquals(1, meterRegistry.get("demo.last-known-good.served").tag("name", "orders").counter().count());
+    }
+
+    @Test
+    void the_copy_is_refreshed_in_the_background() {
+        var calls = new AtomicInteger();
+        var fresh = new Order("o1", List.of("ol1", "ol2"));
+        var flaky = Mono.defer(() -> calls.incrementAndGet() == 1
+                ? Mono.<Order>error(new DeadlineExceededException("Deadline passed during GET /orders/o1"))
+                : Mono.just(fresh));
+
+        lastKnownGoods.serve("orders", "o1", Mono.just(ORDER)).block();
+        assertEquals(ORDER, lastKnownGoods.serve("orders", "o1", flaky).block());
+
+        assertEquals(2, calls.get());
+        assertEquals(fresh, lastKnownGoods.serve("orders", "o1", Mono.<Order>error(new DeadlineExceededException("again"))).block());
+    }
+
+    @Test
+    void other_errors_and_unknown_keys_are_passed_on() {
+        lastKnownGoods.serve("orders", "o1", Mono.just(ORDER)).block();
+
+        StepVerifier.create(lastKnownGoods.serve("orders", "o1", Mono.error(WebClientResponseException.create(500, "Internal Server Error", null, null, null))))
+                .expectError(WebClientResponseException.InternalServerError.class)
+                .verify(Duration.ofSeconds(1));
+        StepVerifier.create(lastKnownGoods.serve("orders", "o2", Mono.error(new DeadlineExceededException("Deadline passed"))))
+                .expectError(DeadlineExceededException.class)
+                .verify(Duration.ofSeconds(1));
+    }
+
+    @Test
+    void a_slow_backend_costs_freshness_not_latency() throws Exception {
+        try (var backend = new MockWebServer()) {
+            backend.enqueue(new MockResponse().setHeader("content-type", "application/json").setBody(new ObjectMapper().writeValueAsString(ORDER)));
+            backend.enqueue(new MockResponse().setHeadersDelay(2, TimeUnit.SECONDS).setResponseCode(200));
+            backend.enqueue(new MockResponse().setHeadersDelay(2, TimeUnit.SECONDS).setResponseCode(200));
+            var circuitBreakerFactory = new ReactiveResilience4JCircuitBreakerFactory();
+            circuitBreakerFactory.configureDefault(id -> new Resilience4JConfigBuilder(id)
+                    .circuitBreakerConfig(CircuitBreakerConfig.ofDefaults())
+                    .timeLimiterConfig(TimeLimiterConfig.custom().timeoutDuration(Duration.ofMillis(200)).build())
+                    .build());
+            var retriever = new GOrderRetriever(WebClient.create(backend.url("/").toString()), TestUtils.noRetryBudget(), lastKnownGoods, TestUtils.noBulkheads(), circuitBreakerFactory);
+            retriever.setup();
+
+            assertEquals(ORDER, retriever.retrieve("o1").block(Duration.ofSeconds(1)));
+            long start = System.nanoTime();
+            assertEquals(ORDER, retriever.retrieve("o1").block(Duration.ofSeconds(1)));
+
+            assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(1000));
+        }
+    }
+
+    private EnrichedOrder enriched(Mono<Order> order) {
+        return Staleness.mark(lastKnownGoods.serve("orders", "o1", order).map(o -> new EnrichedOrder(o, List.of()))).block(Duration.ofSeconds(1));
+    }
+}
@@ -0,0 +1,97 @@
+package net.leonw.webclientdemo;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.servlet.HandlerMapping;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LatencyFilterTest {
+    private LatencyFilter filter;
+
+    @BeforeEach
+    void initialize() {
+        filter = new LatencyFilter(new LatencyProperties());
+        filter.setup(); // Normally Spring would do this.
+    }
+
+    @AfterEach
+    void tearDown() {
+        filter.dispose();
+    }
+
+    @Test
+    void latency_is_recorded_per_route_template_and_status_class() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            call("/f/enriched-orders/{id}", "/f/enriched-orders/o" + i, 200, 5);
+        }
+        call("/f/enriched-orders/{id}", "/f/enriched-orders/o-broken", 503, 0);
+        call(null, "/favicon.ico", 404, 0);
+
+        filter.recorder().rotate();
+
+        var lastInterval = filter.recorder().lastInterval();
+        assertEquals(2, lastInterval.size());
+        var orders = lastInterval.get("/f/enriched-orders/{id}");
+        assertEquals(10, orders.get("2xx").getTotalCount());
+        assertTrue(orders.get("2xx").getValueAtPercentile(50) >= TimeUnit.MILLISECONDS.toMicros(5));
+        assertEquals(1, orders.get("5xx").getTotalCount());
+        assertEquals(1, lastInterval.get(LatencyFilter.UNMATCHED).get("4xx").getTotalCount());
+    }
+
+    @Test
+    void an_interval_starts_empty() throws Exception {
+        call("/f/enriched-orders/{id}", "/f/enriched-orders/o1", 200, 0);
+        filter.recorder().rotate();
+        filter.recorder().rotate();
+
+        assertTrue(filter.recorder().lastInterval().isEmpty());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void the_endpoint_shows_percentiles_in_ms() throws Exception {
+        call("/f/enriched-orders/{id}", "/f/enriched-orders/o1", 200, 20);
+        filter.recorder().rotate();
+
+        var latency = new LatencyEndpoint(filter, new LatencyProperties()).latency();
+
+        assertEquals("PT1M", latency.get("interval"));
+        var routes = (Map<String, Map<String, Map<String, Object>>>) latency.get("routes");
+        var ok = routes.get("/f/enriched-orders/{id}").get("2xx");
+        assertEquals(1L, ok.get("count"));
+        for (var percentile : new String[]{"p50", "p90", "p99", "p99.9", "max"}) {
+            assertTrue((double) ok.get(percentile) >= 20, percentile + " " + ok.get(percentile));
+        }
+    }
+
+    private void call(String route, String uri, int status, long millis) throws Exception {
+        var request = new MockHttpServletRequest("GET", uri);
+        var response = new MockHttpServletResponse();
+        filter.doFilter(request, response, new MockFilterChain(new HttpServlet() {
+            @Override
+            protected void service(HttpServletRequest req, HttpServletResponse resp) {
+                try {
+                    Thread.sleep(millis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                if (route != null) {
+                    req.setAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE, route);
+                }
+                resp.setStatus(status);
+            }
+        }));
+    }
+}
@@ -0,0 +1,132 @@
+package net.leonw.webclientdemo;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.reactive.function.client.ExchangeFunction;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ProductStoreTest {
+    @TempDir
+    Path dir;
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final List<ProductStore> stores = new ArrayList<>();
+
+    @AfterEach
+    void close() {
+        stores.forEach(ProductStore::close);
+    }
+
+    @Test
+    void products_survive_a_restart() {
+        var store = store(100);
+        store.put("p1", new Product("p1", "data"));
+        store.put("p2", new Product("p2", "old"));
+        store.put("p2", new Product("p2", "new"));
+        store.close();
+
+        var restarted = store(100);
+
+        assertEquals(2, restarted.getEntries());
+        assertEquals(new Product("p1", "data"), restarted.get("p1").block());
+        assertEquals(new Product("p2", "new"), restarted.get("p2").block());
+        assertNull(restarted.get("p3").block());
+    }
+
+    @Test
+    void a_restarted_retriever_does_not_call_the_backend_for_a_product_it_knew() {
+        var calls = new AtomicInteger();
+        ExchangeFunction backend = request -> {
+            calls.incrementAndGet();
+            return TestUtils.createMockResponse(new Product("p1", "data"));
+        };
+
+        assertEquals(new Product("p1", "data"), retriever(backend, store(100)).retrieve("p1").block(Duration.ofSeconds(1)));
+        stores.get(0).close();
+        assertEquals(new Product("p1", "data"), retriever(backend, store(100)).retrieve("p1").block(Duration.ofSeconds(1)));
+
+        assertEquals(1, calls.get());
+        assertEquals(1, meterRegistry.get("demo.product-store.gets").tag("result", "hit").counter().count());
+    }
+
+    @Test
+    void compaction_keeps_the_newest_products_within_budget() throws Exception {
+        var store = store(10);
+        for (int i = 0; i < 25; i++) {
+            store.put("p" + i, new Product("p" + i, "data " + i));
+        }
+        // One writer, in order: when the last one is there, so is everything before it
+        TestUtils.eventually(() -> store.get("p24").block() != null);
+
+        assertTrue(store.getEntries() <= 10, store.getEntries() + " entries");
+        assertTrue(meterRegistry.get("demo.product-store.compactions").counter().count() >= 1);
+        assertEquals(new Product("p24", "data 24"), store.get("p24").block());
+        assertNull(store.get("p0").block());
+        assertEquals(64 * 1024, Files.size(dir.resolve("products.store")));
+    }
+
+    @Test
+    void the_file_is_not_touched_on_the_callers_thread() {
+        var store = store(100);
+        var caller = Thread.currentThread().getName();
+        store.put("p1", new Product("p1", "data"));
+        TestUtils.eventually(() -> store.getEntries() == 1);
+
+        var reader = store.get("p1").map(product -> Thread.currentThread().getName()).block(Duration.ofSeconds(1));
+
+        assertNotEquals(caller, reader);
+        assertTrue(reader.startsWith("boundedElastic"), reader);
+    }
+
+    @Test
+    void gets_while_the_writer_appends_and_compacts_see_whole_products() {
+        var store = store(10);
+        for (int i = 0; i < 200; i++) {
+            store.put("p" + i % 20, new Product("p" + i % 20, "data " + i % 20));
+        }
+
+        // Missing is fine (not written yet, or compacted away), half a product or another one is not
+        Flux.range(0, 2000)
+                .flatMap(i -> store.get("p" + i % 20), 8)
+                .doOnNext(product -> assertEquals("data " + product.getId().substring(1), product.getData()))
+                .blockLast(Duration.ofSeconds(10));
+
+        TestUtils.eventually(() -> meterRegistry.get("demo.product-store.compactions").counter().count() >= 1);
+    }
+
+    private ProductStore store(int maxEntries) {
+        var props = new ProductStoreProperties();
+        props.setEnabled(true);
+        props.setPath(dir.resolve("products.store").toString());
+        props.setMaxFileSize(DataSize.ofKilobytes(64));
+        props.setMaxEntries(maxEntries);
+        var store = new ProductStore(props, new ObjectMapper(), new JsonProperties(), meterRegistry);
+        store.open();
+        stores.add(store);
+        return store;
+    }
+
+    private ProductRetriever retriever(ExchangeFunction backend, ProductStore store) {
+        var retriever = new ProductRetriever(WebClient.builder().exchangeFunction(backend).build(), TestUtils.noCoalescing(), TestUtils.noLimits(),
+                TestUtils.noHedging(), TestUtils.noRetryBudget(), TestUtils.noBulkheads(), new ProductCacheProperties(), store, new BatchingProperties(), new SimpleMeterRegistry());
+        retriever.setup();
+        return retriever;
+    }
+}
@@ -0,0 +1,107 @@
+package net.leonw.webclientdemo;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RequestHedgerTest {
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final HedgingProperties.Hedge props = new HedgingProperties.Hedge();
+
+    @Test
+    void a_slow_call_is_hedged_and_the_hedge_wins() {
+        props.setBudgetPercent(100);
+        props.setMinDelay(Duration.ofMillis(50));
+        var hedger = new RequestHedger("test", props, meterRegistry);
+        var attempts = new AtomicInteger();
+        var primaryCancelled = new AtomicBoolean();
+        // The first attempt hangs on a GC pause, the second is quick
+        var call = Mono.defer(() -> attempts.incrementAndGet() == 1
+                ? Mono.delay(Duration.ofSeconds(5)).map(tick -> "slow").doOnCancel(() -> primaryCancelled.set(true))
+                : Mono.delay(Duration.ofMillis(10)).map(tick -> "fast"));
+
+        long start = System.nanoTime();
+        assertEquals("fast", hedger.hedge(call).block(Duration.ofSeconds(2)));
+
+        assertTrue(Duration.ofNanos(System.nanoTime() - start).toMillis() < 1000);
+        assertTrue(primaryCancelled.get());
+        assertEquals(1, count("sent"));
+        assertEquals(1, count("won"));
+    }
+
+    @Test
+    void no_more_hedges_than_the_budget() {
+        props.setBudgetPercent(10);
+        props.setMinDelay(Duration.ofMillis(20));
+        var hedger = new RequestHedger("test", props, meterRegistry);
+
+        // Everything is slow. Hedging does not help then, and it should not double the load.
+        List<String> results = Flux.range(0, 50)
+                .flatMap(i -> hedger.hedge(Mono.delay(Duration.ofMillis(100)).map(tick -> "ok")))
+                .collectList()
+                .block(Duration.ofSeconds(5));
+
+        assertEquals(50, results.size());
+        assertTrue(count("sent") <= 5, count("sent") + " hedges");
+        assertEquals(50, count("sent") + count("over_budget"));
+    }
+
+    @Test
+    void a_failing_hedge_leaves_the_primary_alone() {
+        props.setBudgetPercent(100);
+        props.setMinDelay(Duration.ofMillis(20));
+        var hedger = new RequestHedger("test", props, meterRegistry);
+        var attempts = new AtomicInteger();
+        var call = Mono.defer(() -> attempts.incrementAndGet() == 1
+                ? Mono.delay(Duration.ofMillis(200)).map(tick -> "primary")
+                : Mono.<String>error(new IllegalStateException("hedge failed")));
+
+        assertEquals("primary", hedger.hedge(call).block(Duration.ofSeconds(2)));
+        assertEquals(1, count("sent"));
+        assertEquals(0, count("won"));
+    }
+
+    @Test
+    void the_delay_is_a_percentile_of_recent_calls() {
+        props.setMinDelay(Duration.ofMillis(1));
+        props.setMinSamples(50);
+        var hedger = new RequestHedger("test", props, meterRegistry);
+        assertEquals(Duration.ofMillis(1), hedger.currentDelay());
+
+        Flux.range(0, 100)
+                .concatMap(i -> hedger.hedge(Mono.delay(Duration.ofMillis(5))))
+                .blockLast(Duration.ofSeconds(5));
+
+        var delay = hedger.currentDelay().toMillis();
+        // The percentiles are approximations, a few percent off
+        assertTrue(delay >= 4 && delay < 50, delay + " ms");
+    }
+
+    @Test
+    void the_delay_is_computed_again_every_few_calls_not_on_every_call() {
+        props.setMinDelay(Duration.ofMillis(1));
+        props.setMinSamples(1);
+        var hedger = new RequestHedger("test", props, meterRegistry);
+
+        Flux.range(0, RequestHedger.REFRESH_SAMPLES - 1)
+                .concatMap(i -> hedger.hedge(Mono.delay(Duration.ofMillis(5))))
+                .blockLast(Duration.ofSeconds(5));
+        assertEquals(Duration.ofMillis(1), hedger.currentDelay());
+
+        hedger.hedge(Mono.delay(Duration.ofMillis(5))).block(Duration.ofSeconds(1));
+        assertTrue(hedger.currentDelay().toMillis() >= 4, hedger.currentDelay().toMillis() + " ms");
+    }
+
+    private double count(String outcome) {
+        return meterRegistry.counter("demo.hedging.hedges", "name", "test", "outcome", outcome).count();
+    }
+}
@@ -0,0 +1,51 @@
+package net.leonw.webclientdemo;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+// One product, through the F and the G retriever, against the ZeroLatencyBackend. The unit everything in
+// EnrichmentPipelineBenchmark is built of; a difference between F and G here is the price of their extras.
+//
+//     mvn -P jmh test -Djmh.args="RetrieverBenchmark -prof gc"
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RetrieverBenchmark {
+    private ConnectionPools connectionPools;
+    private ProductRetriever fProductRetriever;
+    private GProductRetriever gProductRetriever;
+
+    @Setup
+    public void setup() {
+        ((Logger) LoggerFactory.getLogger("net.leonw.webclientdemo")).setLevel(Level.WARN);
+
+        var meterRegistry = new SimpleMeterRegistry();
+        var backend = new ZeroLatencyBackend(1);
+        connectionPools = new ConnectionPools(new ConnectionPoolProperties(), meterRegistry);
+        fProductRetriever = ZeroLatencyBackend.fProductRetriever(connectionPools, backend, meterRegistry);
+        gProductRetriever = ZeroLatencyBackend.gProductRetriever(connectionPools, backend, meterRegistry);
+    }
+
+    @TearDown
+    public void tearDown() {
+        connectionPools.dispose();
+    }
+
+    @Benchmark
+    public Product fProduct() {
+        return fProductRetriever.retrieve("p-0").block();
+    }
+
+    @Benchmark
+    public Product gProduct() {
+        return gProductRetriever.retrieve("p-0").block();
+    }
+}
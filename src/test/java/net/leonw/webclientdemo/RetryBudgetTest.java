@@ -0,0 +1,98 @@
+package net.leonw.webclientdemo;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+import reactor.util.retry.Retry;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RetryBudgetTest {
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test
+    void a_brownout_does_not_quadruple_the_traffic() {
+        var budgets = budgets(0.2, 5);
+        var attempts = new AtomicInteger();
+        var failing = Mono.defer(() -> {
+            attempts.incrementAndGet();
+            return Mono.error(new IllegalStateException("503"));
+        });
+
+        var errors = Flux.range(0, 100)
+                .concatMap(i -> failing.retryWhen(budgets.retry("backend", Retry.max(3)))
+                        .onErrorResume(t -> Mono.just(t.getClass().getSimpleName())))
+                .collectList()
+                .block(Duration.ofSeconds(5));
+
+        // Without a budget: 400 attempts. With: 100 requests, 5 in the bucket and 0.2 retry per request.
+        assertTrue(attempts.get() <= 100 + 5 + 20, attempts.get() + " attempts");
+        assertTrue(errors.contains(RetryBudgetExhaustedException.class.getSimpleName()));
+        assertTrue(meterRegistry.counter("demo.retry.budget.exhausted", "name", "backend").count() > 0);
+        assertTrue(meterRegistry.get("demo.retry.budget.tokens").tag("name", "backend").gauge().value() < 1);
+    }
+
+    @Test
+    void retrievers_fail_with_a_distinct_exception_and_the_last_failure_as_cause() throws IOException {
+        var mockBackEnd = new MockWebServer();
+        mockBackEnd.start();
+        try {
+            for (int i = 0; i < 4; i++) {
+                mockBackEnd.enqueue(new MockResponse().setResponseCode(500));
+            }
+            var webClient = WebClient.builder().baseUrl("http://localhost:" + mockBackEnd.getPort()).build();
+            // 1 retry in the bucket, and requests do not earn any
+            var retriever = new OrderLineRetriever(webClient, TestUtils.noCoalescing(), TestUtils.noLimits(), TestUtils.noHedging(),
+                    budgets(0, 1), TestUtils.noBulkheads(), new BatchingProperties(), meterRegistry);
+            retriever.setup(); // Normally Spring would do this.
+
+            StepVerifier.create(retriever.retrieve("ol1"))
+                    .expectErrorSatisfies(t -> {
+                        assertTrue(t instanceof RetryBudgetExhaustedException, t.toString());
+                        assertTrue(t.getCause() instanceof WebClientResponseException.InternalServerError);
+                    })
+                    .verify(Duration.ofSeconds(5));
+            assertEquals(2, mockBackEnd.getRequestCount());
+        } finally {
+            mockBackEnd.shutdown();
+        }
+    }
+
+    @Test
+    void budgets_are_shared_per_downstream() {
+        var budgets = budgets(0, 1);
+        var failing = Mono.error(new IllegalStateException("503"));
+
+        // Somebody else used the only token of 'backend'
+        StepVerifier.create(failing.retryWhen(budgets.retry("backend", Retry.max(1))))
+                .expectError(IllegalStateException.class)
+                .verify(Duration.ofSeconds(1));
+        StepVerifier.create(failing.retryWhen(budgets.retry("backend", Retry.max(1))))
+                .expectError(RetryBudgetExhaustedException.class)
+                .verify(Duration.ofSeconds(1));
+        // Another downstream has its own
+        StepVerifier.create(failing.retryWhen(budgets.retry("other", Retry.max(1))))
+                .expectError(IllegalStateException.class)
+                .verify(Duration.ofSeconds(1));
+    }
+
+    private RetryBudgets budgets(double ratio, double maxTokens) {
+        var budget = new RetryBudgetProperties.Budget();
+        budget.setRatio(ratio);
+        budget.setMaxTokens(maxTokens);
+        var props = new RetryBudgetProperties();
+        props.getRetryBudgets().put("default", budget);
+        return new RetryBudgets(props, meterRegistry);
+    }
+}
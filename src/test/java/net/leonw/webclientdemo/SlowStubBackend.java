@@ -0,0 +1,78 @@
+package net.leonw.webclientdemo;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import reactor.core.publisher.Mono;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.HttpProtocol;
+import reactor.netty.http.server.HttpServer;
+import reactor.netty.http.server.HttpServerRequest;
+import reactor.netty.http.server.HttpServerResponse;
+
+import java.net.SocketAddress;
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// MockWebServer uses a thread per connection, which does not go well with 10k concurrent requests.
+// This is a Netty based stand-in for the backend: order x has order lines x-1 and x-2, order line x has product p-x.
+// Every response takes 'latency'.
+// By default it speaks HTTP/1.1 only. Pass H2C (and HTTP11) to also accept cleartext HTTP/2, both the upgrade
+// and prior knowledge. It remembers which protocols and how many client connections it has seen.
+class SlowStubBackend implements AutoCloseable {
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final Duration latency;
+    private final DisposableServer server;
+    private final Set<String> protocols = ConcurrentHashMap.newKeySet();
+    private final Set<SocketAddress> connections = ConcurrentHashMap.newKeySet();
+
+    SlowStubBackend(Duration latency) {
+        this(latency, HttpProtocol.HTTP11);
+    }
+
+    SlowStubBackend(Duration latency, HttpProtocol... protocols) {
+        this.latency = latency;
+        this.server = HttpServer.create()
+                .port(0)
+                .protocol(protocols)
+                .route(routes -> routes
+                        .get("/orders/{id}", (request, response) -> respond(request, response, new Order(request.param("id"), List.of(request.param("id") + "-1", request.param("id") + "-2"))))
+                        .get("/orderlines/{id}", (request, response) -> respond(request, response, new OrderLine(request.param("id"), "p-" + request.param("id"))))
+                        .get("/products/{id}", (request, response) -> respond(request, response, new Product(request.param("id"), "data for " + request.param("id")))))
+                .bindNow();
+    }
+
+    String baseUrl() {
+        return "http://localhost:" + server.port();
+    }
+
+    // HTTP/1.1 and/or HTTP/2.0
+    Set<String> protocols() {
+        return protocols;
+    }
+
+    // Distinct client connections; an HTTP/2 connection carries many requests
+    int connectionCount() {
+        return connections.size();
+    }
+
+    private Mono<Void> respond(HttpServerRequest request, HttpServerResponse response, Object value) {
+        // HTTP/2 streams are converted to HTTP/1.1 requests for us; the stream id header gives them away.
+        protocols.add(request.requestHeaders().contains("x-http2-stream-id") ? "HTTP/2.0" : request.protocol());
+        connections.add(request.remoteAddress());
+        String json;
+        try {
+            json = objectMapper.writeValueAsString(value);
+        } catch (JsonProcessingException e) {
+            return Mono.error(e);
+        }
+        return Mono.delay(latency)
+                .then(response.header("Content-Type", "application/json").sendString(Mono.just(json)).then());
+    }
+
+    @Override
+    public void close() {
+        server.disposeNow();
+    }
+}
@@ -0,0 +1,109 @@
+package net.leonw.webclientdemo;
+
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.servlet.context.ServletWebServerApplicationContext;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.Collectors;
+
+// Not a test, a benchmark. Excluded from the normal build; run with
+//   mvn -P benchmark test -Dtest=StubBackendLoadBenchmarkTest
+// The F or G endpoint under a fixed load, against the StubBackend with a realistic backend: log-normal latency
+// (median 20 ms, p99 ~200 ms), 1% errors and 1 to 20 lines per order. After a warm-up, every endpoint runs twice,
+// each time on a fresh backend with the same seed; the two runs should give (nearly) the same numbers.
+@Slf4j
+@Tag("benchmark")
+class StubBackendLoadBenchmarkTest {
+    private static final int REQUESTS = 2000;
+    private static final int CONCURRENCY = 50;
+
+    @ParameterizedTest(name = "{0}")
+    @CsvSource({"/f-ultimate-example-perhaps/enriched-orders/{id}", "/g-with-circuit-breaker/enriched-orders/{id}"})
+    void enriched_orders(String endpoint) {
+        var props = backendProps();
+        var warmUpBackend = new StubBackend(props);
+        props.setPort(warmUpBackend.port()); // Every run gets a fresh backend, at the same address
+        try (var context = (ServletWebServerApplicationContext) new SpringApplicationBuilder(WebClientDemoApplication.class)
+                .properties(
+                        "server.port=0",
+                        "demo.backend.base-url=" + warmUpBackend.baseUrl(),
+                        "logging.level.net.leonw.webclientdemo=WARN")
+                .run()) {
+
+            var connections = ConnectionProvider.builder("benchmark-client")
+                    .maxConnections(CONCURRENCY)
+                    .build();
+            var client = WebClient.builder()
+                    .clientConnector(new ReactorClientHttpConnector(HttpClient.create(connections)))
+                    .baseUrl("http://localhost:" + context.getWebServer().getPort())
+                    .build();
+
+            // The first run warms up the JIT and fills the connection pools; its numbers are not comparable
+            try (warmUpBackend) {
+                run(client, endpoint, "warm-up");
+            }
+            for (int run = 1; run <= 2; run++) {
+                try (var backend = new StubBackend(props)) {
+                    run(client, endpoint, "run " + run);
+                }
+            }
+            connections.dispose();
+        }
+    }
+
+    private void run(WebClient client, String endpoint, String name) {
+        long start = System.nanoTime();
+        List<Long> latencies = Flux.range(0, REQUESTS)
+                .flatMap(i -> timed(client, endpoint, "o" + i), CONCURRENCY)
+                .collectList()
+                .block(Duration.ofMinutes(5));
+        var elapsed = Duration.ofNanos(System.nanoTime() - start);
+
+        var succeeded = latencies.stream().filter(ms -> ms >= 0).sorted().collect(Collectors.toList());
+        log.warn("{} {}: {} ms total, {} req/s, {} failed, p50 {} ms, p90 {} ms, p99 {} ms",
+                endpoint, name, elapsed.toMillis(),
+                REQUESTS * 1000L / Math.max(1, elapsed.toMillis()),
+                REQUESTS - succeeded.size(),
+                percentile(succeeded, 0.50), percentile(succeeded, 0.90), percentile(succeeded, 0.99));
+    }
+
+    private static StubBackendProperties backendProps() {
+        var props = new StubBackendProperties();
+        props.setPort(0);
+        props.getLatency().setDistribution(StubBackendProperties.Distribution.LOG_NORMAL);
+        props.getLatency().setMedian(Duration.ofMillis(20));
+        props.getLatency().setSigma(1.0);
+        props.getLatency().setMax(Duration.ofSeconds(2));
+        props.setErrorRate(0.01);
+        props.getOrderLines().setMin(1);
+        props.getOrderLines().setMax(20);
+        return props;
+    }
+
+    // Latency in ms, or -1 for a failed request
+    private Mono<Long> timed(WebClient client, String endpoint, String orderId) {
+        return Mono.defer(() -> {
+            long start = System.nanoTime();
+            return client.get().uri(endpoint, orderId)
+                    .retrieve()
+                    .toBodilessEntity()
+                    .map(response -> (System.nanoTime() - start) / 1_000_000)
+                    .onErrorReturn(-1L);
+        });
+    }
+
+    private static long percentile(List<Long> sorted, double percentile) {
+        return sorted.isEmpty() ? -1 : sorted.get((int) Math.min(sorted.size() - 1, Math.ceil(percentile * sorted.size()) - 1));
+    }
+}
@@ -0,0 +1,108 @@
+package net.leonw.webclientdemo;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StubBackendTest {
+
+    @Test
+    void orders_have_the_configured_number_of_lines_and_the_same_lines_every_time() {
+        var props = props(42);
+        props.getOrderLines().setMin(1);
+        props.getOrderLines().setMax(100);
+        props.setProducts(10);
+
+        try (var backend = new StubBackend(props); var again = new StubBackend(props)) {
+            var webClient = WebClient.create(backend.baseUrl());
+            var order = webClient.get().uri("/orders/{id}", "o1").retrieve().bodyToMono(Order.class).block(Duration.ofSeconds(5));
+            var line = webClient.get().uri("/orderlines/{id}", order.getOrderLineIds().get(0)).retrieve().bodyToMono(OrderLine.class).block(Duration.ofSeconds(5));
+
+            assertTrue(order.getOrderLineIds().size() >= 1 && order.getOrderLineIds().size() <= 100);
+            assertEquals(order, again.order("o1"));
+            assertEquals(line, again.orderLine(line.getId()));
+            assertTrue(line.getProductId().matches("p-\\d"), line.getProductId());
+        }
+    }
+
+    @Test
+    void the_same_seed_gives_the_same_errors() {
+        var props = props(42);
+        props.setErrorRate(0.2);
+        props.setNotFoundRate(0.1);
+
+        var first = statuses(props, 200);
+        var second = statuses(props, 200);
+        var otherSeed = statuses(props(7), 200);
+
+        assertEquals(first, second);
+        assertNotEquals(first, otherSeed);
+        long errors = first.stream().filter(status -> status == 503).count();
+        long notFound = first.stream().filter(status -> status == 404).count();
+        assertTrue(errors > 20 && errors < 60, errors + " errors");
+        assertTrue(notFound > 5 && notFound < 35, notFound + " not found");
+    }
+
+    @Test
+    void log_normal_latency_has_a_long_tail() {
+        var latency = new StubBackendProperties.Latency();
+        latency.setDistribution(StubBackendProperties.Distribution.LOG_NORMAL);
+        latency.setMedian(Duration.ofMillis(50));
+        latency.setSigma(1.0);
+        var random = new SplittableRandom(42);
+
+        var sorted = IntStream.range(0, 100_000)
+                .mapToLong(i -> StubBackend.latency(latency, random).toNanos())
+                .sorted()
+                .toArray();
+
+        double p50 = sorted[50_000] / 1e6;
+        double p99 = sorted[99_000] / 1e6;
+        assertEquals(50, p50, 2, "p50");
+        // exp(2.326) ~ 10.2
+        assertEquals(512, p99, 40, "p99");
+    }
+
+    @Test
+    void uniform_latency_stays_between_min_and_max() {
+        var latency = new StubBackendProperties.Latency();
+        latency.setDistribution(StubBackendProperties.Distribution.UNIFORM);
+        latency.setMin(Duration.ofMillis(10));
+        latency.setMax(Duration.ofMillis(20));
+        var random = new SplittableRandom(42);
+
+        IntStream.range(0, 10_000).forEach(i -> {
+            var sample = StubBackend.latency(latency, random);
+            assertTrue(sample.toMillis() >= 10 && sample.toMillis() <= 20, sample.toString());
+        });
+    }
+
+    // One request after the other, so the n-th request is always the same one
+    private static List<Integer> statuses(StubBackendProperties props, int requests) {
+        try (var backend = new StubBackend(props)) {
+            var webClient = WebClient.create(backend.baseUrl());
+            return Flux.range(0, requests)
+                    .concatMap(i -> webClient.get().uri("/products/{id}", "p-" + i)
+                            .exchangeToMono(response -> response.releaseBody().thenReturn(response.rawStatusCode())))
+                    .collectList()
+                    .block(Duration.ofSeconds(30));
+        }
+    }
+
+    private static StubBackendProperties props(long seed) {
+        var props = new StubBackendProperties();
+        props.setPort(0);
+        props.setSeed(seed);
+        props.getLatency().setFixed(Duration.ZERO);
+        return props;
+    }
+}
@@ -2,10 +2,21 @@ package net.leonw.webclientdemo;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerConfig;
+import io.github.resilience4j.timelimiter.TimeLimiterConfig;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.cloud.circuitbreaker.resilience4j.ReactiveResilience4JCircuitBreakerFactory;
+import org.springframework.cloud.circuitbreaker.resilience4j.Resilience4JConfigBuilder;
 import org.springframework.http.HttpStatus;
 import org.springframework.web.reactive.function.client.ClientResponse;
 import reactor.core.publisher.Mono;
 
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.fail;
+
 public class TestUtils {
     public static <T> Mono<ClientResponse> createMockResponse(T value) {
         String valueAsString;
@@ -36,4 +47,71 @@ public class TestUtils {
                 ClientResponse.create(status).build()
         );
     }
+
+    // Coalescing is opt-in, and this is what you get when nobody opted in.
+    public static RequestCoalescer noCoalescing() {
+        return new RequestCoalescer(new RequestCoalescingProperties(), new SimpleMeterRegistry());
+    }
+
+    public static DownstreamLimiters noLimits() {
+        return new DownstreamLimiters(new DownstreamLimitProperties(), new SimpleMeterRegistry());
+    }
+
+    public static DownstreamHedgers noHedging() {
+        return new DownstreamHedgers(new HedgingProperties(), new SimpleMeterRegistry());
+    }
+
+    public static RetryBudgets noRetryBudget() {
+        var budget = new RetryBudgetProperties.Budget();
+        budget.setEnabled(false);
+        var props = new RetryBudgetProperties();
+        props.getRetryBudgets().put("default", budget);
+        return new RetryBudgets(props, new SimpleMeterRegistry());
+    }
+
+    public static Bulkheads noBulkheads() {
+        return new Bulkheads(new BulkheadProperties(), new SimpleMeterRegistry());
+    }
+
+    // The resilience4j defaults, without the 1 second time limit
+    public static ReactiveResilience4JCircuitBreakerFactory noCircuitBreakerTimeout() {
+        var factory = new ReactiveResilience4JCircuitBreakerFactory();
+        factory.configureDefault(id -> new Resilience4JConfigBuilder(id)
+                .circuitBreakerConfig(CircuitBreakerConfig.ofDefaults())
+                .timeLimiterConfig(TimeLimiterConfig.custom().timeoutDuration(Duration.ofMinutes(1)).build())
+                .build());
+        return factory;
+    }
+
+    public static ProductCacheProperties noProductCache() {
+        var props = new ProductCacheProperties();
+        props.setEnabled(false);
+        return props;
+    }
+
+    public static ProductStore noProductStore() {
+        return new ProductStore(new ProductStoreProperties(), new ObjectMapper(), new JsonProperties(), new SimpleMeterRegistry());
+    }
+
+    public static LastKnownGoods noLastKnownGood() {
+        var props = new LastKnownGoodProperties();
+        props.setEnabled(false);
+        return new LastKnownGoods(props, new SimpleMeterRegistry());
+    }
+
+    // For things that happen on another thread. There is no awaitility here.
+    public static void eventually(BooleanSupplier condition) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                fail("Condition not met within 2 seconds");
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail(e);
+            }
+        }
+    }
 }
@@ -0,0 +1,97 @@
+package net.leonw.webclientdemo;
+
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.servlet.context.ServletWebServerApplicationContext;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.Collectors;
+
+// Not a test, a benchmark. Excluded from the normal build; run with
+//   mvn -P benchmark test
+// It starts the application twice per concurrency level: once with the default platform thread pool
+// (server.tomcat.threads.max=200) and once with demo.web.virtual-threads=true, and fires N concurrent
+// enriched-order requests at the blocking F endpoint. Every backend call takes 200 ms, so an enriched
+// order takes ~600 ms when nothing has to wait.
+//
+// Note that 10k concurrent requests with client, application and backend in 1 JVM needs about 30k file
+// descriptors (ulimit -n).
+@Slf4j
+@Tag("benchmark")
+class VirtualThreadsBenchmarkTest {
+    private static final Duration BACKEND_LATENCY = Duration.ofMillis(200);
+
+    @ParameterizedTest(name = "{0} threads, {1} concurrent requests")
+    @CsvSource({"platform, 1000", "virtual, 1000", "platform, 10000", "virtual, 10000"})
+    void enriched_orders(String threads, int concurrency) {
+        try (var backend = new SlowStubBackend(BACKEND_LATENCY);
+             var context = (ServletWebServerApplicationContext) new SpringApplicationBuilder(WebClientDemoApplication.class)
+                     .properties(
+                             "server.port=0",
+                             "demo.web.virtual-threads=" + threads.equals("virtual"),
+                             "demo.backend.base-url=" + backend.baseUrl(),
+                             "demo.f.max-duration-seconds=120",
+                             "server.tomcat.max-connections=" + (concurrency + 1000),
+                             "server.tomcat.accept-count=" + concurrency,
+                             // 2 order lines per order: up to 2 calls per request to a downstream at a time
+                             "demo.downstream.pools.default.max-connections=" + concurrency,
+                             "demo.downstream.pools.default.pending-acquire-max-count=" + concurrency,
+                             "logging.level.net.leonw.webclientdemo=WARN")
+                     .run()) {
+
+            var connections = ConnectionProvider.builder("benchmark-client")
+                    .maxConnections(concurrency)
+                    .pendingAcquireMaxCount(-1)
+                    .build();
+            var client = WebClient.builder()
+                    .clientConnector(new ReactorClientHttpConnector(HttpClient.create(connections)))
+                    .baseUrl("http://localhost:" + context.getWebServer().getPort())
+                    .build();
+
+            var threadsBean = ManagementFactory.getThreadMXBean();
+            threadsBean.resetPeakThreadCount();
+            long start = System.nanoTime();
+            List<Long> latencies = Flux.range(0, concurrency)
+                    .flatMap(i -> timed(client, "o" + i), concurrency)
+                    .collectList()
+                    .block(Duration.ofMinutes(5));
+            var elapsed = Duration.ofNanos(System.nanoTime() - start);
+
+            var succeeded = latencies.stream().filter(ms -> ms >= 0).sorted().collect(Collectors.toList());
+            log.warn("{} threads, {} concurrent: {} ms total, {} req/s, {} failed, p50 {} ms, p99 {} ms, peak platform threads {}",
+                    threads, concurrency, elapsed.toMillis(),
+                    concurrency * 1000L / Math.max(1, elapsed.toMillis()),
+                    concurrency - succeeded.size(),
+                    percentile(succeeded, 0.50), percentile(succeeded, 0.99),
+                    threadsBean.getPeakThreadCount());
+            connections.dispose();
+        }
+    }
+
+    // Latency in ms, or -1 for a failed request
+    private Mono<Long> timed(WebClient client, String orderId) {
+        return Mono.defer(() -> {
+            long start = System.nanoTime();
+            return client.get().uri("/f-ultimate-example-perhaps/enriched-orders/{id}", orderId)
+                    .retrieve()
+                    .toBodilessEntity()
+                    .map(response -> (System.nanoTime() - start) / 1_000_000)
+                    .onErrorReturn(-1L);
+        });
+    }
+
+    private static long percentile(List<Long> sorted, double percentile) {
+        return sorted.isEmpty() ? -1 : sorted.get((int) Math.min(sorted.size() - 1, Math.ceil(percentile * sorted.size()) - 1));
+    }
+}
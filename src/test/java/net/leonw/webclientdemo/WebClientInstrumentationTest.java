@@ -0,0 +1,145 @@
+package net.leonw.webclientdemo;
+
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// The retrievers on the pooled WebClient; the instrumentation comes with it.
+class WebClientInstrumentationTest {
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final CountDownLatch release = new CountDownLatch(1);
+    private MockWebServer mockBackEnd;
+    private ConnectionPools connectionPools;
+    private WebClient webClient;
+
+    @BeforeEach
+    void initialize() throws IOException {
+        mockBackEnd = new MockWebServer();
+        mockBackEnd.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                var path = request.getPath();
+                if (path.startsWith("/orderlines/slow")) {
+                    release.await(5, TimeUnit.SECONDS);
+                }
+                if (path.startsWith("/orderlines/missing")) {
+                    return new MockResponse().setResponseCode(404);
+                }
+                if (path.startsWith("/orderlines/broken")) {
+                    return new MockResponse().setResponseCode(503);
+                }
+                return new MockResponse().setResponseCode(200)
+                        .setHeader("Content-Type", "application/json")
+                        .setBody("{\"id\": \"ol1\", \"orderId\": \"o1\", \"productId\": \"p1\"}");
+            }
+        });
+        mockBackEnd.start();
+        connectionPools = new ConnectionPools(new ConnectionPoolProperties(), meterRegistry);
+        webClient = connectionPools.webClient(WebClient.builder(), "orderlines", "http://localhost:" + mockBackEnd.getPort(), false);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        release.countDown();
+        connectionPools.dispose();
+        mockBackEnd.shutdown();
+    }
+
+    @Test
+    void calls_are_timed_per_uri_template_and_outcome() {
+        var retriever = retriever(TestUtils.noRetryBudget());
+
+        for (var id : new String[]{"ol1", "ol2", "ol3", "missing"}) {
+            retriever.retrieve(id).onErrorResume(t -> Mono.empty()).block(Duration.ofSeconds(5));
+        }
+
+        // 3 ids, 1 timer: the id is not a tag
+        assertEquals(3, calls("SUCCESS", "200").count());
+        // The retriever retries a 404, every attempt is a call
+        assertEquals(4, calls("CLIENT_ERROR", "404").count());
+        assertEquals(2, meterRegistry.find("demo.http.client.calls").timers().size());
+    }
+
+    @Test
+    void errors_and_cancellations_are_outcomes_too() {
+        var retriever = retriever(TestUtils.noRetryBudget());
+
+        StepVerifier.create(retriever.retrieve("slow").contextWrite(Deadline.in(Duration.ofMillis(100))))
+                .expectError(DeadlineExceededException.class)
+                .verify(Duration.ofSeconds(5));
+        StepVerifier.create(retriever.retrieve("slow"))
+                .thenAwait(Duration.ofMillis(100))
+                .thenCancel()
+                .verify(Duration.ofSeconds(5));
+
+        assertEquals(1, meterRegistry.get("demo.http.client.calls")
+                .tags("outcome", "UNKNOWN", "exception", DeadlineExceededException.class.getSimpleName()).timer().count());
+        assertEquals(1, meterRegistry.get("demo.http.client.calls").tags("outcome", "CANCELLED").timer().count());
+    }
+
+    @Test
+    void in_flight_calls_are_counted() {
+        var retriever = retriever(TestUtils.noRetryBudget());
+
+        var subscriptions = IntStream.range(0, 3)
+                .mapToObj(i -> retriever.retrieve("slow").subscribe(ol -> {}, t -> {}))
+                .toList();
+        TestUtils.eventually(() -> inFlight() == 3);
+
+        release.countDown();
+        TestUtils.eventually(() -> inFlight() == 0);
+        subscriptions.forEach(Disposable::dispose);
+    }
+
+    @Test
+    void retries_are_counted_per_downstream() {
+        var budget = new RetryBudgetProperties.Budget();
+        budget.setEnabled(false);
+        var props = new RetryBudgetProperties();
+        props.getRetryBudgets().put("default", budget);
+        var retriever = retriever(new RetryBudgets(props, meterRegistry));
+
+        StepVerifier.create(retriever.retrieve("broken"))
+                .expectError()
+                .verify(Duration.ofSeconds(5));
+
+        // 1 call and 3 retries
+        assertEquals(4, calls("SERVER_ERROR", "503").count());
+        assertEquals(3, meterRegistry.get("demo.http.client.retries").tag("downstream", "orderlines").counter().count());
+    }
+
+    private OrderLineRetriever retriever(RetryBudgets retryBudgets) {
+        var retriever = new OrderLineRetriever(webClient, TestUtils.noCoalescing(), TestUtils.noLimits(), TestUtils.noHedging(),
+                retryBudgets, TestUtils.noBulkheads(), new BatchingProperties(), meterRegistry);
+        retriever.setup(); // Normally Spring would do this.
+        return retriever;
+    }
+
+    private Timer calls(String outcome, String status) {
+        return meterRegistry.get("demo.http.client.calls")
+                .tags("downstream", "orderlines", "method", "GET", "uri", "/orderlines/{id}", "outcome", outcome, "status", status)
+                .timer();
+    }
+
+    private double inFlight() {
+        return meterRegistry.get("demo.http.client.in_flight").tag("downstream", "orderlines").gauge().value();
+    }
+}
@@ -0,0 +1,101 @@
+package net.leonw.webclientdemo;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.ExchangeStrategies;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Mono;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+// The backend as an ExchangeFunction that answers right away, like TestUtils.createMockResponse but for all
+// three resources. No network, no latency: what is left to measure is WebClient, Jackson and our own code.
+//
+// Order "o-<n>" has n order lines "ol-0" .. "ol-<n-1>", order line "ol-<i>" has product "p-<i>".
+// The JSON is rendered up front so the stub itself costs a map lookup. It is decoded like in the application, with
+// the DomainJsonDecoder (a ClientResponse made here brings its own codecs, not those of the WebClient).
+class ZeroLatencyBackend {
+    private final Map<String, String> bodies = new HashMap<>();
+    private final ExchangeStrategies strategies = ExchangeStrategies.builder()
+            .codecs(configurer -> configurer.customCodecs().registerWithDefaultConfig(new DomainJsonDecoder(new ObjectMapper())))
+            .build();
+
+    ZeroLatencyBackend(int... orderSizes) {
+        int maxLines = IntStream.of(orderSizes).max().orElse(0);
+        for (int size : orderSizes) {
+            var lines = IntStream.range(0, size).mapToObj(i -> "\"ol-" + i + "\"").collect(Collectors.joining(","));
+            bodies.put("/orders/" + orderId(size), "{\"id\":\"" + orderId(size) + "\",\"orderLineIds\":[" + lines + "]}");
+        }
+        for (int i = 0; i < maxLines; i++) {
+            bodies.put("/orderlines/ol-" + i, "{\"id\":\"ol-" + i + "\",\"productId\":\"p-" + i + "\"}");
+            bodies.put("/products/p-" + i, "{\"id\":\"p-" + i + "\",\"data\":\"product p-" + i + " and some data to make it a bit more realistic\"}");
+        }
+    }
+
+    static String orderId(int lines) {
+        return "o-" + lines;
+    }
+
+    /**
+     * A WebClient like the F and G retrievers get, filters included, on this backend.
+     */
+    WebClient webClient(ConnectionPools connectionPools, String downstream) {
+        return connectionPools.webClient(WebClient.builder().exchangeStrategies(strategies).exchangeFunction(request -> respond(request.url().getPath())),
+                downstream, "http://zero-latency", false);
+    }
+
+    private Mono<ClientResponse> respond(String path) {
+        var body = bodies.get(path);
+        if (body == null) {
+            return Mono.just(ClientResponse.create(HttpStatus.NOT_FOUND, strategies).build());
+        }
+        return Mono.just(ClientResponse.create(HttpStatus.OK, strategies)
+                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                .body(body)
+                .build());
+    }
+
+    // The F and G services, wired like Spring would, but without coalescing, caching, batching, limits and
+    // hedging: all calls go to the backend.
+    static FEnrichedOrderService fService(ConnectionPools pools, ZeroLatencyBackend backend, MeterRegistry meterRegistry) {
+        var orderLineRetriever = new OrderLineRetriever(backend.webClient(pools, "orderlines"), TestUtils.noCoalescing(), TestUtils.noLimits(),
+                TestUtils.noHedging(), TestUtils.noRetryBudget(), TestUtils.noBulkheads(), new BatchingProperties(), meterRegistry);
+        orderLineRetriever.setup();
+        return new FEnrichedOrderService(
+                new OrderRetriever(backend.webClient(pools, "orders"), TestUtils.noCoalescing(), TestUtils.noRetryBudget(), TestUtils.noBulkheads()),
+                orderLineRetriever,
+                fProductRetriever(pools, backend, meterRegistry));
+    }
+
+    static ProductRetriever fProductRetriever(ConnectionPools pools, ZeroLatencyBackend backend, MeterRegistry meterRegistry) {
+        var productRetriever = new ProductRetriever(backend.webClient(pools, "products"), TestUtils.noCoalescing(), TestUtils.noLimits(),
+                TestUtils.noHedging(), TestUtils.noRetryBudget(), TestUtils.noBulkheads(), TestUtils.noProductCache(), TestUtils.noProductStore(), new BatchingProperties(), meterRegistry);
+        productRetriever.setup();
+        return productRetriever;
+    }
+
+    static GEnrichedOrderService gService(ConnectionPools pools, ZeroLatencyBackend backend, MeterRegistry meterRegistry) {
+        // This backend answers on the calling thread, so all order lines are retrieved inside the onNext of the
+        // order, i.e. within the 1 second time limit of the order circuit breaker. With a real backend every call
+        // is asynchronous and the order is done long before its lines are.
+        var circuitBreakerFactory = TestUtils.noCircuitBreakerTimeout();
+        var orderRetriever = new GOrderRetriever(backend.webClient(pools, "orders"), TestUtils.noRetryBudget(), TestUtils.noLastKnownGood(), TestUtils.noBulkheads(), circuitBreakerFactory);
+        orderRetriever.setup();
+        var orderLineRetriever = new GOrderLineRetriever(backend.webClient(pools, "orderlines"), TestUtils.noRetryBudget(), TestUtils.noLastKnownGood(), TestUtils.noBulkheads(), circuitBreakerFactory);
+        orderLineRetriever.setup();
+        return new GEnrichedOrderService(orderRetriever, orderLineRetriever, gProductRetriever(pools, backend, meterRegistry));
+    }
+
+    static GProductRetriever gProductRetriever(ConnectionPools pools, ZeroLatencyBackend backend, MeterRegistry meterRegistry) {
+        var productRetriever = new GProductRetriever(backend.webClient(pools, "products"), TestUtils.noRetryBudget(), TestUtils.noLastKnownGood(), TestUtils.noBulkheads(), TestUtils.noCircuitBreakerTimeout(), TestUtils.noProductCache(), TestUtils.noProductStore(), meterRegistry);
+        productRetriever.setup();
+        return productRetriever;
+    }
+}